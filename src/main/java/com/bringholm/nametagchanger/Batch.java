@@ -0,0 +1,134 @@
+package com.bringholm.nametagchanger;
+
+import com.bringholm.nametagchanger.skin.Skin;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang.Validate;
+import org.bukkit.entity.Player;
+
+import java.util.Map;
+
+/**
+ * Collects name and skin changes for several players, which are then
+ * applied and sent to all other players together.
+ * <p>
+ * Instances of this class are obtained through NameTagChanger#batch(Consumer).
+ * Changes are validated as soon as they are made, but nothing is applied
+ * until the consumer passed to NameTagChanger#batch(Consumer) returns.
+ *
+ * @author AlvinB
+ */
+public final class Batch {
+    private final NameTagChanger nameTagChanger;
+    private final Map<Player, Change> changes = Maps.newLinkedHashMap();
+    private boolean committed;
+
+    Batch(NameTagChanger nameTagChanger) {
+        this.nameTagChanger = nameTagChanger;
+    }
+
+    /**
+     * Changes the name displayed above the player's head.
+     *
+     * @param player  the player
+     * @param newName the new name of the player
+     * @return this batch
+     * @see NameTagChanger#changePlayerName(Player, String)
+     */
+    public Batch changeName(Player player, String newName) {
+        checkNotCommitted();
+        nameTagChanger.validateName(player, newName);
+        Change change = getChange(player);
+        change.newName = newName;
+        change.resetName = false;
+        return this;
+    }
+
+    /**
+     * Resets the player's name back to normal.
+     *
+     * @param player the player
+     * @return this batch
+     * @see NameTagChanger#resetPlayerName(Player)
+     */
+    public Batch resetName(Player player) {
+        checkNotCommitted();
+        Validate.notNull(player, "player cannot be null");
+        Change change = getChange(player);
+        change.newName = null;
+        change.resetName = true;
+        return this;
+    }
+
+    /**
+     * Sets a player's skin.
+     *
+     * @param player the player
+     * @param skin   the skin
+     * @return this batch
+     * @see NameTagChanger#setPlayerSkin(Player, Skin)
+     */
+    public Batch setSkin(Player player, Skin skin) {
+        checkNotCommitted();
+        nameTagChanger.validateSkin(player, skin);
+        Change change = getChange(player);
+        change.skin = skin;
+        change.resetSkin = false;
+        return this;
+    }
+
+    /**
+     * Resets a player's skin back to normal.
+     *
+     * @param player the player
+     * @return this batch
+     * @see NameTagChanger#resetPlayerSkin(Player)
+     */
+    public Batch resetSkin(Player player) {
+        checkNotCommitted();
+        Validate.notNull(player, "player cannot be null");
+        Change change = getChange(player);
+        change.skin = null;
+        change.resetSkin = true;
+        return this;
+    }
+
+    void commit() {
+        checkNotCommitted();
+        committed = true;
+        if (changes.isEmpty()) {
+            return;
+        }
+        Map<Player, String> oldNames = Maps.newLinkedHashMap();
+        for (Map.Entry<Player, Change> entry : changes.entrySet()) {
+            Player player = entry.getKey();
+            Change change = entry.getValue();
+            oldNames.put(player, nameTagChanger.getDisplayedName(player));
+            if (change.skin != null) {
+                nameTagChanger.applySkin(player, change.skin);
+            } else if (change.resetSkin) {
+                nameTagChanger.applySkinReset(player);
+            }
+            if (change.newName != null) {
+                nameTagChanger.applyName(player, change.newName);
+            } else if (change.resetName) {
+                nameTagChanger.applyNameReset(player);
+            }
+        }
+        nameTagChanger.requestUpdates(oldNames);
+    }
+
+    private Change getChange(Player player) {
+        return changes.computeIfAbsent(player, p -> new Change());
+    }
+
+    private void checkNotCommitted() {
+        Validate.isTrue(!committed, "This batch has already been committed");
+    }
+
+    private static class Change {
+        private String newName;
+        private boolean resetName;
+        private Skin skin;
+        private boolean resetSkin;
+    }
+}
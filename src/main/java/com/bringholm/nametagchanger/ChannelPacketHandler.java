@@ -2,16 +2,23 @@ package com.bringholm.nametagchanger;
 
 import com.bringholm.packetinterceptor.v1_0.PacketInterceptor;
 import com.bringholm.reflectutil.v1_1_1.ReflectUtil;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.mojang.authlib.GameProfile;
 import org.bukkit.Bukkit;
 import org.bukkit.GameMode;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.EquipmentSlot;
 import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
 import org.bukkit.plugin.Plugin;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
 /**
@@ -32,51 +39,77 @@ public class ChannelPacketHandler extends PacketInterceptor implements IPacketHa
     private static final Class<?> ENUM_GAMEMODE;
     private static final Class<?> GAME_PROFILE_CLASS = ReflectUtil.getClass("com.mojang.authlib.GameProfile").getOrThrow();
 
+    // All reflective accessors are resolved once through ReflectUtil and then converted to MethodHandles with
+    // an all-Object signature. Since they are static final constants, the JIT can inline invokeExact calls
+    // on them as if they were direct calls.
+    private static final Class<?> PLAYER_INFO_CLASS = ReflectUtil.getNMSClass("PacketPlayOutPlayerInfo").getOrThrow();
     private static final Class<?> PLAYER_INFO_DATA_CLASS = ReflectUtil.getNMSClass("PacketPlayOutPlayerInfo$PlayerInfoData").getOrThrow();
-    private static final Field PLAYER_DATA_LIST = ReflectUtil.getDeclaredFieldByType(ReflectUtil.getNMSClass("PacketPlayOutPlayerInfo").getOrThrow(), List.class, 0, true).getOrThrow();
-    private static final Method GET_GAME_PROFILE = ReflectUtil.getMethodByType(PLAYER_INFO_DATA_CLASS, GAME_PROFILE_CLASS, 0).getOrThrow();
-    private static final Constructor<?> PLAYER_INFO_DATA_CONSTRUCTOR = ReflectUtil.getConstructor(PLAYER_INFO_DATA_CLASS, ReflectUtil.getNMSClass("PacketPlayOutPlayerInfo").getOrThrow(), GAME_PROFILE_CLASS,
-            int.class, ENUM_GAMEMODE, ReflectUtil.getNMSClass("IChatBaseComponent").getOrThrow()).getOrThrow();
-    private static final Method GET_LATENCY = ReflectUtil.getMethodByType(PLAYER_INFO_DATA_CLASS, int.class, 0).getOrThrow();
-    private static final Method GET_GAMEMODE = ReflectUtil.getMethodByType(PLAYER_INFO_DATA_CLASS, ENUM_GAMEMODE, 0).getOrThrow();
-    private static final Method GET_DISPLAY_NAME = ReflectUtil.getMethodByType(PLAYER_INFO_DATA_CLASS, ReflectUtil.getNMSClass("IChatBaseComponent").getOrThrow(), 0).getOrThrow();
+    private static final Field PLAYER_DATA_LIST_FIELD = ReflectUtil.getDeclaredFieldByType(PLAYER_INFO_CLASS, List.class, 0, true).getOrThrow();
+    private static final MethodHandle GET_PLAYER_DATA_LIST = unreflectGetter(PLAYER_DATA_LIST_FIELD);
+    private static final MethodHandle SET_PLAYER_DATA_LIST = unreflectSetter(PLAYER_DATA_LIST_FIELD);
+    private static final MethodHandle GET_GAME_PROFILE = unreflect(ReflectUtil.getMethodByType(PLAYER_INFO_DATA_CLASS, GAME_PROFILE_CLASS, 0).getOrThrow());
+    private static final MethodHandle PLAYER_INFO_DATA_CONSTRUCTOR = unreflectConstructor(ReflectUtil.getConstructor(PLAYER_INFO_DATA_CLASS, PLAYER_INFO_CLASS, GAME_PROFILE_CLASS,
+            int.class, ENUM_GAMEMODE, ReflectUtil.getNMSClass("IChatBaseComponent").getOrThrow()).getOrThrow());
+    private static final MethodHandle GET_LATENCY = unreflect(ReflectUtil.getMethodByType(PLAYER_INFO_DATA_CLASS, int.class, 0).getOrThrow());
+    private static final MethodHandle GET_GAMEMODE = unreflect(ReflectUtil.getMethodByType(PLAYER_INFO_DATA_CLASS, ENUM_GAMEMODE, 0).getOrThrow());
+    private static final MethodHandle GET_DISPLAY_NAME = unreflect(ReflectUtil.getMethodByType(PLAYER_INFO_DATA_CLASS, ReflectUtil.getNMSClass("IChatBaseComponent").getOrThrow(), 0).getOrThrow());
 
     private static final Class<?> ENTITY_PLAYER = ReflectUtil.getNMSClass("EntityPlayer").getOrThrow();
-    private static final Constructor<?> PACKET_PLAYER_INFO_CONSTRUCTOR = ReflectUtil.getConstructor(ReflectUtil.getNMSClass("PacketPlayOutPlayerInfo").getOrThrow(),
-            ReflectUtil.getNMSClass("PacketPlayOutPlayerInfo$EnumPlayerInfoAction").getOrThrow(), Array.newInstance(ENTITY_PLAYER, 0).getClass()).getOrThrow();
+    private static final MethodHandle PACKET_PLAYER_INFO_CONSTRUCTOR = unreflectConstructor(ReflectUtil.getConstructor(PLAYER_INFO_CLASS,
+            ReflectUtil.getNMSClass("PacketPlayOutPlayerInfo$EnumPlayerInfoAction").getOrThrow(), Array.newInstance(ENTITY_PLAYER, 0).getClass()).getOrThrow());
     private static final Object REMOVE_PLAYER_CONSTANT = ReflectUtil.getEnumConstant(ReflectUtil.getNMSClass("PacketPlayOutPlayerInfo$EnumPlayerInfoAction").getOrThrow(), "REMOVE_PLAYER").getOrThrow();
-    private static final Method GET_HANDLE = ReflectUtil.getMethod(ReflectUtil.getCBClass("entity.CraftPlayer").getOrThrow(), "getHandle").getOrThrow();
-    private static final Field PLAYER_CONNECTION = ReflectUtil.getFieldByType(ENTITY_PLAYER, ReflectUtil.getNMSClass("PlayerConnection").getOrThrow(), 0).getOrThrow();
-    private static final Method SEND_PACKET = ReflectUtil.getMethod(ReflectUtil.getNMSClass("PlayerConnection").getOrThrow(), "sendPacket", ReflectUtil.getNMSClass("Packet").getOrThrow()).getOrThrow();
+    private static final MethodHandle GET_HANDLE = unreflect(ReflectUtil.getMethod(ReflectUtil.getCBClass("entity.CraftPlayer").getOrThrow(), "getHandle").getOrThrow());
+    private static final MethodHandle GET_PLAYER_CONNECTION = unreflectGetter(ReflectUtil.getFieldByType(ENTITY_PLAYER, ReflectUtil.getNMSClass("PlayerConnection").getOrThrow(), 0).getOrThrow());
+    private static final MethodHandle SEND_PACKET = unreflect(ReflectUtil.getMethod(ReflectUtil.getNMSClass("PlayerConnection").getOrThrow(), "sendPacket", ReflectUtil.getNMSClass("Packet").getOrThrow()).getOrThrow());
 
-    private static final Constructor<?> PACKET_PLAYER_INFO_CONSTRUCTOR_EMPTY = ReflectUtil.getConstructor(ReflectUtil.getNMSClass("PacketPlayOutPlayerInfo").getOrThrow()).getOrThrow();
-    private static final Method ENTITY_PLAYER_GET_GAME_PROFILE = ReflectUtil.getMethodByType(ENTITY_PLAYER, GAME_PROFILE_CLASS, 0).getOrThrow();
-    private static final Field PING = ReflectUtil.getField(ENTITY_PLAYER, "ping").getOrThrow();
+    private static final MethodHandle PACKET_PLAYER_INFO_CONSTRUCTOR_EMPTY = unreflectConstructor(ReflectUtil.getConstructor(PLAYER_INFO_CLASS).getOrThrow());
+    private static final MethodHandle ENTITY_PLAYER_GET_GAME_PROFILE = unreflect(ReflectUtil.getMethodByType(ENTITY_PLAYER, GAME_PROFILE_CLASS, 0).getOrThrow());
+    private static final MethodHandle GET_PING = unreflectGetter(ReflectUtil.getField(ENTITY_PLAYER, "ping").getOrThrow());
     @SuppressWarnings("ConstantConditions")
-    private static final Method GET_BY_ID = ReflectUtil.getMethod(ENUM_GAMEMODE, "getById", int.class).getOrThrow();
-    private static final Constructor<?> CHAT_COMPONENT_TEXT_CONSTRUCTOR = ReflectUtil.getConstructor(ReflectUtil.getNMSClass("ChatComponentText").getOrThrow(), String.class).getOrThrow();
-    private static final Field PLAYER_INFO_ACTION = ReflectUtil.getDeclaredFieldByType(ReflectUtil.getNMSClass("PacketPlayOutPlayerInfo").getOrThrow(), ReflectUtil.getNMSClass("PacketPlayOutPlayerInfo$EnumPlayerInfoAction").getOrThrow(), 0, true).getOrThrow();
+    private static final MethodHandle GET_BY_ID = unreflect(ReflectUtil.getMethod(ENUM_GAMEMODE, "getById", int.class).getOrThrow());
+    private static final MethodHandle CHAT_COMPONENT_TEXT_CONSTRUCTOR = unreflectConstructor(ReflectUtil.getConstructor(ReflectUtil.getNMSClass("ChatComponentText").getOrThrow(), String.class).getOrThrow());
+    private static final Field PLAYER_INFO_ACTION_FIELD = ReflectUtil.getDeclaredFieldByType(PLAYER_INFO_CLASS, ReflectUtil.getNMSClass("PacketPlayOutPlayerInfo$EnumPlayerInfoAction").getOrThrow(), 0, true).getOrThrow();
+    private static final MethodHandle GET_PLAYER_INFO_ACTION = unreflectGetter(PLAYER_INFO_ACTION_FIELD);
+    private static final MethodHandle SET_PLAYER_INFO_ACTION = unreflectSetter(PLAYER_INFO_ACTION_FIELD);
     private static final Object ADD_PLAYER_CONSTANT = ReflectUtil.getEnumConstant(ReflectUtil.getNMSClass("PacketPlayOutPlayerInfo$EnumPlayerInfoAction").getOrThrow(), "ADD_PLAYER").getOrThrow();
+    private static final Object UPDATE_DISPLAY_NAME_CONSTANT = ReflectUtil.getEnumConstant(ReflectUtil.getNMSClass("PacketPlayOutPlayerInfo$EnumPlayerInfoAction").getOrThrow(), "UPDATE_DISPLAY_NAME").getOrThrow();
 
-    private static final Constructor<?> PACKET_ENTITY_DESTROY_CONSTRUCTOR = ReflectUtil.getConstructor(ReflectUtil.getNMSClass("PacketPlayOutEntityDestroy").getOrThrow(), int[].class).getOrThrow();
+    private static final MethodHandle PACKET_ENTITY_DESTROY_CONSTRUCTOR = unreflectConstructor(ReflectUtil.getConstructor(ReflectUtil.getNMSClass("PacketPlayOutEntityDestroy").getOrThrow(), int[].class).getOrThrow());
 
-    private static final Constructor<?> PACKET_NAMED_ENTITY_SPAWN_CONSTRUCTOR = ReflectUtil.getConstructor(ReflectUtil.getNMSClass("PacketPlayOutNamedEntitySpawn").getOrThrow(), ReflectUtil.getNMSClass("EntityHuman").getOrThrow()).getOrThrow();
+    private static final MethodHandle PACKET_NAMED_ENTITY_SPAWN_CONSTRUCTOR = unreflectConstructor(ReflectUtil.getConstructor(ReflectUtil.getNMSClass("PacketPlayOutNamedEntitySpawn").getOrThrow(), ReflectUtil.getNMSClass("EntityHuman").getOrThrow()).getOrThrow());
 
     private static final Class<?> ITEM_STACK_CLASS = ReflectUtil.getNMSClass("ItemStack").getOrThrow();
-    private static final Method AS_NMS_COPY = ReflectUtil.getMethod(ReflectUtil.getCBClass("inventory.CraftItemStack").getOrThrow(), "asNMSCopy", ItemStack.class).getOrThrow();
+    private static final MethodHandle AS_NMS_COPY = unreflect(ReflectUtil.getMethod(ReflectUtil.getCBClass("inventory.CraftItemStack").getOrThrow(), "asNMSCopy", ItemStack.class).getOrThrow());
     private static final Class<?> ENUM_ITEM_SLOT_CLASS = ReflectUtil.getNMSClass("EnumItemSlot").getOrThrow();
     private static final Method ENUM_ITEM_SLOT_BY_NAME = ReflectUtil.getMethodByPredicate(ENUM_ITEM_SLOT_CLASS, new ReflectUtil.MethodPredicate().withModifiers(Modifier.PUBLIC, Modifier.STATIC).withParams(String.class).withReturnType(ENUM_ITEM_SLOT_CLASS).withPredicate(method -> !method.getName().equals("valueOf")), 0).getOrThrow();
-    private static final Constructor<?> PACKET_ENTITY_EQUIPMENT_CONSTRUCTOR = ReflectUtil.getConstructor(ReflectUtil.getNMSClass("PacketPlayOutEntityEquipment").getOrThrow(), int.class, ENUM_ITEM_SLOT_CLASS, ITEM_STACK_CLASS).getOrThrow();
+    private static final Map<EquipmentSlot, Object> ITEM_SLOTS = getItemSlots();
+    private static final MethodHandle PACKET_ENTITY_EQUIPMENT_CONSTRUCTOR = unreflectConstructor(ReflectUtil.getConstructor(ReflectUtil.getNMSClass("PacketPlayOutEntityEquipment").getOrThrow(), int.class, ENUM_ITEM_SLOT_CLASS, ITEM_STACK_CLASS).getOrThrow());
 
     private static final Class<?> SCOREBOARD_TEAM_PACKET_CLASS = ReflectUtil.getNMSClass("PacketPlayOutScoreboardTeam").getOrThrow();
-    private static final Field SCOREBOARD_TEAM_PACKET_MODE = ReflectUtil.getDeclaredField(SCOREBOARD_TEAM_PACKET_CLASS, "i", true).getOrThrow();
-    private static final Field SCOREBOARD_TEAM_PACKET_ENTRIES_TO_ADD = ReflectUtil.getDeclaredFieldByType(SCOREBOARD_TEAM_PACKET_CLASS, Collection.class, 0, true).getOrThrow();
+    private static final Field SCOREBOARD_TEAM_PACKET_MODE_FIELD = ReflectUtil.getDeclaredField(SCOREBOARD_TEAM_PACKET_CLASS, "i", true).getOrThrow();
+    private static final MethodHandle GET_SCOREBOARD_TEAM_PACKET_MODE = unreflectGetter(SCOREBOARD_TEAM_PACKET_MODE_FIELD);
+    private static final MethodHandle SET_SCOREBOARD_TEAM_PACKET_MODE = unreflectSetter(SCOREBOARD_TEAM_PACKET_MODE_FIELD);
+    private static final MethodHandle GET_SCOREBOARD_TEAM_PACKET_ENTRIES = unreflectGetter(ReflectUtil.getDeclaredFieldByType(SCOREBOARD_TEAM_PACKET_CLASS, Collection.class, 0, true).getOrThrow());
     private static final int CREATE_SCOREBOARD_TEAM_MODE = 0;
     private static final int JOIN_SCOREBOARD_TEAM_MODE = 3;
     private static final int LEAVE_SCOREBOARD_TEAM_MODE = 4;
 
-    private static final Constructor<?> SCOREBOARD_TEAM_PACKET_CONSTRUCTOR = ReflectUtil.getConstructor(SCOREBOARD_TEAM_PACKET_CLASS).getOrThrow();
-    private static final Field SCOREBOARD_TEAM_PACKET_TEAM_NAME = ReflectUtil.getDeclaredField(SCOREBOARD_TEAM_PACKET_CLASS, "a", true).getOrThrow();
+    // The entity tracker internals differ a lot between versions, so these are allowed to be missing,
+    // in which case every player in the same world is assumed to be tracking the player.
+    private static final MethodHandle CRAFT_WORLD_GET_HANDLE = tryResolve(() -> unreflect(ReflectUtil.getMethod(ReflectUtil.getCBClass("CraftWorld").getOrThrow(), "getHandle").getOrThrow()));
+    private static final MethodHandle GET_ENTITY_TRACKER = tryResolve(() -> unreflectGetter(ReflectUtil.getDeclaredFieldByType(ReflectUtil.getNMSClass("WorldServer").getOrThrow(),
+            ReflectUtil.getNMSClass("EntityTracker").getOrThrow(), 0, true).getOrThrow()));
+    private static final MethodHandle GET_TRACKED_ENTITIES = tryResolve(() -> unreflectGetter(ReflectUtil.getDeclaredFieldByType(ReflectUtil.getNMSClass("EntityTracker").getOrThrow(),
+            ReflectUtil.getNMSClass("IntHashMap").getOrThrow(), 0, true).getOrThrow()));
+    private static final MethodHandle INT_HASH_MAP_GET = tryResolve(() -> unreflect(ReflectUtil.getMethod(ReflectUtil.getNMSClass("IntHashMap").getOrThrow(), "get", int.class).getOrThrow()));
+    private static final MethodHandle GET_TRACKED_PLAYERS = tryResolve(() -> unreflectGetter(ReflectUtil.getDeclaredFieldByType(ReflectUtil.getNMSClass("EntityTrackerEntry").getOrThrow(),
+            Set.class, 0, true).getOrThrow()));
+    private static final MethodHandle GET_BUKKIT_ENTITY = tryResolve(() -> unreflect(ReflectUtil.getMethod(ENTITY_PLAYER, "getBukkitEntity").getOrThrow()));
+    private static final boolean TRACKER_LOOKUP_SUPPORTED = CRAFT_WORLD_GET_HANDLE != null && GET_ENTITY_TRACKER != null && GET_TRACKED_ENTITIES != null
+            && INT_HASH_MAP_GET != null && GET_TRACKED_PLAYERS != null && GET_BUKKIT_ENTITY != null;
+
+    private static final MethodHandle SCOREBOARD_TEAM_PACKET_CONSTRUCTOR = unreflectConstructor(ReflectUtil.getConstructor(SCOREBOARD_TEAM_PACKET_CLASS).getOrThrow());
+    private static final MethodHandle SET_SCOREBOARD_TEAM_PACKET_TEAM_NAME = unreflectSetter(ReflectUtil.getDeclaredField(SCOREBOARD_TEAM_PACKET_CLASS, "a", true).getOrThrow());
 
     ChannelPacketHandler(Plugin plugin) {
         super(plugin, "PacketPlayOutPlayerInfo", "PacketPlayOutScoreboardTeam");
@@ -84,163 +117,221 @@ public class ChannelPacketHandler extends PacketInterceptor implements IPacketHa
 
     @Override
     public boolean packetSending(Player player, Object packet, String packetName) {
-        if (NameTagChanger.INSTANCE.sendingPackets) {
+        if (NameTagChanger.INSTANCE.isBypassed(packet)) {
             return true;
         }
-        if (packetName.equals("PacketPlayOutPlayerInfo")) {
-            List<Object> list = Lists.newArrayList();
-            boolean modified = false;
-            for (Object infoData : (List<Object>) ReflectUtil.getFieldValue(packet, PLAYER_DATA_LIST).getOrThrow()) {
-                GameProfileWrapper gameProfile = GameProfileWrapper.fromHandle(ReflectUtil.invokeMethod(infoData, GET_GAME_PROFILE).getOrThrow());
-                UUID uuid = gameProfile.getUUID();
-                if (NameTagChanger.INSTANCE.gameProfiles.containsKey(uuid)) {
-                    Object prevDisplayName = ReflectUtil.invokeMethod(infoData, GET_DISPLAY_NAME).getOrThrow();
-                    Object displayName = prevDisplayName == null ? ReflectUtil.invokeConstructor(CHAT_COMPONENT_TEXT_CONSTRUCTOR, (Bukkit.getPlayer(uuid) == null ? gameProfile.getName() : Bukkit.getPlayer(uuid).getPlayerListName())).getOrThrow() : ReflectUtil.invokeMethod(infoData, GET_DISPLAY_NAME).getOrThrow();
-                    GameProfileWrapper newGameProfile = NameTagChanger.INSTANCE.gameProfiles.get(uuid);
-                    Object newInfoData = ReflectUtil.invokeConstructor(PLAYER_INFO_DATA_CONSTRUCTOR, packet, newGameProfile.getHandle(),
-                            ReflectUtil.invokeMethod(infoData, GET_LATENCY).getOrThrow(), ReflectUtil.invokeMethod(infoData, GET_GAMEMODE).getOrThrow(), displayName).getOrThrow();
-                    list.add(newInfoData);
-                    modified = true;
-                } else {
-                    list.add(infoData);
+        try {
+            if (packetName.equals("PacketPlayOutPlayerInfo")) {
+                // The client only reads the profile of ADD_PLAYER entries. UPDATE_DISPLAY_NAME entries without a display
+                // name make the client fall back to the profile name, so they need the player list name filled in.
+                // All other actions only use the UUID.
+                Object action = (Object) GET_PLAYER_INFO_ACTION.invokeExact(packet);
+                boolean addPlayer = action == ADD_PLAYER_CONSTANT;
+                if (!addPlayer && action != UPDATE_DISPLAY_NAME_CONSTANT) {
+                    NameTagChanger.INSTANCE.incrementSkippedPlayerInfoPackets();
+                    return true;
                 }
-            }
-            if (modified) {
-                ReflectUtil.setFieldValue(packet, PLAYER_DATA_LIST, list);
-            }
-        } else {
-            int mode = (int) ReflectUtil.getFieldValue(packet, SCOREBOARD_TEAM_PACKET_MODE).getOrThrow();
-            if (mode == CREATE_SCOREBOARD_TEAM_MODE || mode == JOIN_SCOREBOARD_TEAM_MODE || mode == LEAVE_SCOREBOARD_TEAM_MODE) {
-                Collection<String> entriesToAdd = (Collection<String>) ReflectUtil.getFieldValue(packet, SCOREBOARD_TEAM_PACKET_ENTRIES_TO_ADD).getOrThrow();
-                Map<UUID, String> changedPlayerNames = NameTagChanger.INSTANCE.getChangedPlayers();
-                //noinspection Duplicates
-                for (String entry : entriesToAdd) {
-                    for (UUID uuid : changedPlayerNames.keySet()) {
-                        Player changedPlayer = Bukkit.getPlayer(uuid);
-                        if (changedPlayer != null && changedPlayer.getName().equals(entry)) {
-                            entriesToAdd.remove(entry);
-                            entriesToAdd.add(changedPlayerNames.get(uuid));
-                            break;
+                ProfileSnapshot snapshot = NameTagChanger.INSTANCE.getSnapshot();
+                if (snapshot.isEmpty()) {
+                    return true;
+                }
+                List<Object> infoDataList = (List<Object>) (Object) GET_PLAYER_DATA_LIST.invokeExact(packet);
+                // Only allocate the new list once an entry actually needs to be replaced.
+                List<Object> list = null;
+                for (int i = 0; i < infoDataList.size(); i++) {
+                    Object infoData = infoDataList.get(i);
+                    // Only read the UUID, copying the whole profile is wasted work for players that aren't changed.
+                    GameProfile gameProfile = (GameProfile) (Object) GET_GAME_PROFILE.invokeExact(infoData);
+                    UUID uuid = gameProfile.getId();
+                    GameProfileWrapper newGameProfile = snapshot.getProfile(uuid);
+                    Object displayName = newGameProfile == null ? null : (Object) GET_DISPLAY_NAME.invokeExact(infoData);
+                    if (newGameProfile != null && (addPlayer || displayName == null)) {
+                        if (list == null) {
+                            list = Lists.newArrayList(infoDataList.subList(0, i));
                         }
+                        if (displayName == null) {
+                            Player changedPlayer = Bukkit.getPlayer(uuid);
+                            displayName = (Object) CHAT_COMPONENT_TEXT_CONSTRUCTOR.invokeExact((Object) (changedPlayer == null ? gameProfile.getName() : changedPlayer.getPlayerListName()));
+                        }
+                        Object newInfoData = (Object) PLAYER_INFO_DATA_CONSTRUCTOR.invokeExact(packet, addPlayer ? newGameProfile.getHandle() : (Object) gameProfile,
+                                (Object) GET_LATENCY.invokeExact(infoData), (Object) GET_GAMEMODE.invokeExact(infoData), displayName);
+                        list.add(newInfoData);
+                    } else if (list != null) {
+                        list.add(infoData);
                     }
                 }
+                if (list != null) {
+                    SET_PLAYER_DATA_LIST.invokeExact(packet, (Object) list);
+                }
+            } else {
+                int mode = (int) (Object) GET_SCOREBOARD_TEAM_PACKET_MODE.invokeExact(packet);
+                if (mode == CREATE_SCOREBOARD_TEAM_MODE || mode == JOIN_SCOREBOARD_TEAM_MODE || mode == LEAVE_SCOREBOARD_TEAM_MODE) {
+                    Collection<String> entriesToAdd = (Collection<String>) (Object) GET_SCOREBOARD_TEAM_PACKET_ENTRIES.invokeExact(packet);
+                    NameTagChanger.INSTANCE.renameScoreboardEntries(entriesToAdd);
+                }
             }
+        } catch (Throwable t) {
+            throw propagate(t);
         }
         return true;
     }
 
     @Override
     protected void logMessage(Level level, String message, Exception e) {
-        if (level == Level.SEVERE) {
-            System.err.println("[NameTagChanger] " + message);
-        } else {
-            NameTagChanger.INSTANCE.printMessage(message);
-        }
-        if (e != null) {
-            e.printStackTrace();
-        }
+        NameTagChanger.INSTANCE.logMessage(level, message, e);
     }
 
     @Override
-    public void sendTabListRemovePacket(Player playerToRemove, Player seer) {
-        Object array = Array.newInstance(ENTITY_PLAYER, 1);
-        Array.set(array, 0, ReflectUtil.invokeMethod(playerToRemove, GET_HANDLE).getOrThrow());
-        Object packet = ReflectUtil.invokeConstructor(PACKET_PLAYER_INFO_CONSTRUCTOR, REMOVE_PLAYER_CONSTANT, array).getOrThrow();
-        sendPacket(seer, packet);
+    public Object createTabListRemovePacket(Collection<Player> playersToRemove) {
+        try {
+            Object array = Array.newInstance(ENTITY_PLAYER, playersToRemove.size());
+            int i = 0;
+            for (Player playerToRemove : playersToRemove) {
+                Array.set(array, i++, (Object) GET_HANDLE.invokeExact((Object) playerToRemove));
+            }
+            return (Object) PACKET_PLAYER_INFO_CONSTRUCTOR.invokeExact(REMOVE_PLAYER_CONSTANT, array);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
     @Override
-    public void sendTabListAddPacket(Player playerToAdd, GameProfileWrapper newProfile, Player seer) {
-        Object packet = ReflectUtil.invokeConstructor(PACKET_PLAYER_INFO_CONSTRUCTOR_EMPTY).getOrThrow();
-        Object entityPlayer = ReflectUtil.invokeMethod(playerToAdd, GET_HANDLE).getOrThrow();
-        Object infoData = ReflectUtil.invokeConstructor(PLAYER_INFO_DATA_CONSTRUCTOR, packet, newProfile.getHandle(),
-                ReflectUtil.getFieldValue(entityPlayer, PING).getOrThrow(), getEnumGameMode(playerToAdd.getGameMode()),
-                ReflectUtil.invokeConstructor(CHAT_COMPONENT_TEXT_CONSTRUCTOR, playerToAdd.getPlayerListName()).getOrThrow()).getOrThrow();
-        ReflectUtil.setFieldValue(packet, PLAYER_DATA_LIST, Collections.singletonList(infoData)).getOrThrow();
-        ReflectUtil.setFieldValue(packet, PLAYER_INFO_ACTION, ADD_PLAYER_CONSTANT).getOrThrow();
-        sendPacket(seer, packet);
+    public Object createTabListAddPacket(Map<Player, GameProfileWrapper> playersToAdd) {
+        try {
+            Object packet = (Object) PACKET_PLAYER_INFO_CONSTRUCTOR_EMPTY.invokeExact();
+            List<Object> infoDataList = Lists.newArrayListWithCapacity(playersToAdd.size());
+            for (Map.Entry<Player, GameProfileWrapper> entry : playersToAdd.entrySet()) {
+                Player playerToAdd = entry.getKey();
+                Object entityPlayer = (Object) GET_HANDLE.invokeExact((Object) playerToAdd);
+                infoDataList.add((Object) PLAYER_INFO_DATA_CONSTRUCTOR.invokeExact(packet, entry.getValue().getHandle(),
+                        (Object) GET_PING.invokeExact(entityPlayer), getEnumGameMode(playerToAdd.getGameMode()),
+                        (Object) CHAT_COMPONENT_TEXT_CONSTRUCTOR.invokeExact((Object) playerToAdd.getPlayerListName())));
+            }
+            SET_PLAYER_DATA_LIST.invokeExact(packet, (Object) infoDataList);
+            SET_PLAYER_INFO_ACTION.invokeExact(packet, ADD_PLAYER_CONSTANT);
+            return packet;
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
     @Override
-    public void sendEntityDestroyPacket(Player playerToDestroy, Player seer) {
-        Object packet = ReflectUtil.invokeConstructor(PACKET_ENTITY_DESTROY_CONSTRUCTOR, (Object) new int[] {playerToDestroy.getEntityId()}).getOrThrow();
-        sendPacket(seer, packet);
+    public Object createEntityDestroyPacket(Collection<Player> playersToDestroy) {
+        int[] entityIds = new int[playersToDestroy.size()];
+        int i = 0;
+        for (Player playerToDestroy : playersToDestroy) {
+            entityIds[i++] = playerToDestroy.getEntityId();
+        }
+        try {
+            return (Object) PACKET_ENTITY_DESTROY_CONSTRUCTOR.invokeExact((Object) entityIds);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
     @Override
-    public void sendNamedEntitySpawnPacket(Player playerToSpawn, Player seer) {
-        Object packet = ReflectUtil.invokeConstructor(PACKET_NAMED_ENTITY_SPAWN_CONSTRUCTOR, ReflectUtil.invokeMethod(playerToSpawn, GET_HANDLE).getOrThrow()).getOrThrow();
-        sendPacket(seer, packet);
+    public Object createNamedEntitySpawnPacket(Player playerToSpawn) {
+        try {
+            return (Object) PACKET_NAMED_ENTITY_SPAWN_CONSTRUCTOR.invokeExact((Object) GET_HANDLE.invokeExact((Object) playerToSpawn));
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
     @Override
-    public void sendEntityEquipmentPacket(Player playerToSpawn, Player seer) {
+    public List<Object> createEntityEquipmentPackets(Player playerToSpawn) {
+        List<Object> packets = Lists.newArrayList();
         int entityID = playerToSpawn.getEntityId();
-        if (playerToSpawn.getInventory().getItemInMainHand() != null) {
-            doEquipmentPacketSend(entityID, getEnumItemSlot(EquipmentSlot.HAND), getNMSItemStack(playerToSpawn.getInventory().getItemInMainHand()), seer);
-        }
-        if (playerToSpawn.getInventory().getItemInOffHand() != null) {
-            doEquipmentPacketSend(entityID, getEnumItemSlot(EquipmentSlot.OFF_HAND), getNMSItemStack(playerToSpawn.getInventory().getItemInOffHand()), seer);
-        }
-        if (playerToSpawn.getInventory().getBoots() != null) {
-            doEquipmentPacketSend(entityID, getEnumItemSlot(EquipmentSlot.FEET), getNMSItemStack(playerToSpawn.getInventory().getBoots()), seer);
-        }
-        if (playerToSpawn.getInventory().getLeggings() != null) {
-            doEquipmentPacketSend(entityID, getEnumItemSlot(EquipmentSlot.LEGS), getNMSItemStack(playerToSpawn.getInventory().getLeggings()), seer);
-        }
-        if (playerToSpawn.getInventory().getChestplate() != null) {
-            doEquipmentPacketSend(entityID, getEnumItemSlot(EquipmentSlot.CHEST), getNMSItemStack(playerToSpawn.getInventory().getChestplate()), seer);
-        }
-        if (playerToSpawn.getInventory().getHelmet() != null) {
-            doEquipmentPacketSend(entityID, getEnumItemSlot(EquipmentSlot.HEAD), getNMSItemStack(playerToSpawn.getInventory().getHelmet()), seer);
-        }
+        PlayerInventory inventory = playerToSpawn.getInventory();
+        addEquipmentPacket(packets, entityID, EquipmentSlot.HAND, inventory.getItemInMainHand());
+        addEquipmentPacket(packets, entityID, EquipmentSlot.OFF_HAND, inventory.getItemInOffHand());
+        addEquipmentPacket(packets, entityID, EquipmentSlot.FEET, inventory.getBoots());
+        addEquipmentPacket(packets, entityID, EquipmentSlot.LEGS, inventory.getLeggings());
+        addEquipmentPacket(packets, entityID, EquipmentSlot.CHEST, inventory.getChestplate());
+        addEquipmentPacket(packets, entityID, EquipmentSlot.HEAD, inventory.getHelmet());
+        return packets;
     }
 
-    private void doEquipmentPacketSend(int entityID, Object enumItemSlot, Object itemStack, Player recipient) {
-        Object packet = ReflectUtil.invokeConstructor(PACKET_ENTITY_EQUIPMENT_CONSTRUCTOR, entityID, enumItemSlot, itemStack).getOrThrow();
-        sendPacket(recipient, packet);
+    private void addEquipmentPacket(List<Object> packets, int entityID, EquipmentSlot slot, ItemStack itemStack) {
+        if (itemStack == null) {
+            return;
+        }
+        try {
+            packets.add((Object) PACKET_ENTITY_EQUIPMENT_CONSTRUCTOR.invokeExact((Object) entityID, getEnumItemSlot(slot), getNMSItemStack(itemStack)));
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
     private Object getNMSItemStack(ItemStack itemStack) {
-        return ReflectUtil.invokeMethod(null, AS_NMS_COPY, itemStack).getOrThrow();
+        try {
+            return (Object) AS_NMS_COPY.invokeExact((Object) itemStack);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
     private Object getEnumItemSlot(EquipmentSlot slot) {
-        switch (slot) {
-            case HAND:
-                return ReflectUtil.invokeMethod(null, ENUM_ITEM_SLOT_BY_NAME, "mainhand").getOrThrow();
-            case OFF_HAND:
-                return ReflectUtil.invokeMethod(null, ENUM_ITEM_SLOT_BY_NAME, "offhand").getOrThrow();
-            case FEET:
-                return ReflectUtil.invokeMethod(null, ENUM_ITEM_SLOT_BY_NAME, "feet").getOrThrow();
-            case LEGS:
-                return ReflectUtil.invokeMethod(null, ENUM_ITEM_SLOT_BY_NAME, "legs").getOrThrow();
-            case CHEST:
-                return ReflectUtil.invokeMethod(null, ENUM_ITEM_SLOT_BY_NAME, "chest").getOrThrow();
-            case HEAD:
-                return ReflectUtil.invokeMethod(null, ENUM_ITEM_SLOT_BY_NAME, "head").getOrThrow();
-            default:
-                logMessage(Level.SEVERE, "Unknown EquipmentSlot: " + slot, null);
-                return null;
+        Object enumItemSlot = ITEM_SLOTS.get(slot);
+        if (enumItemSlot == null) {
+            logMessage(Level.SEVERE, "Unknown EquipmentSlot: " + slot, null);
         }
+        return enumItemSlot;
     }
 
     @Override
-    public void sendScoreboardRemovePacket(String playerToRemove, Player seer, String team) {
-        sendPacket(seer, getScoreboardPacket(team, playerToRemove, LEAVE_SCOREBOARD_TEAM_MODE));
+    public Object createScoreboardRemovePacket(String playerToRemove, String team) {
+        return getScoreboardPacket(team, playerToRemove, LEAVE_SCOREBOARD_TEAM_MODE);
     }
 
     @Override
-    public void sendScoreboardAddPacket(String playerToAdd, Player seer, String team) {
-        sendPacket(seer, getScoreboardPacket(team, playerToAdd, JOIN_SCOREBOARD_TEAM_MODE));
+    public Object createScoreboardAddPacket(String playerToAdd, String team) {
+        return getScoreboardPacket(team, playerToAdd, JOIN_SCOREBOARD_TEAM_MODE);
     }
 
     private Object getScoreboardPacket(String team, String entryToAdd, int mode) {
-        Object packet = ReflectUtil.invokeConstructor(SCOREBOARD_TEAM_PACKET_CONSTRUCTOR).getOrThrow();
-        ReflectUtil.setFieldValue(packet, SCOREBOARD_TEAM_PACKET_TEAM_NAME, team).getOrThrow();
-        ReflectUtil.setFieldValue(packet, SCOREBOARD_TEAM_PACKET_MODE, mode).getOrThrow();
-        ((Collection<String>) ReflectUtil.getFieldValue(packet, SCOREBOARD_TEAM_PACKET_ENTRIES_TO_ADD).getOrThrow()).add(entryToAdd);
-        return packet;
+        try {
+            Object packet = (Object) SCOREBOARD_TEAM_PACKET_CONSTRUCTOR.invokeExact();
+            SET_SCOREBOARD_TEAM_PACKET_TEAM_NAME.invokeExact(packet, (Object) team);
+            SET_SCOREBOARD_TEAM_PACKET_MODE.invokeExact(packet, (Object) mode);
+            ((Collection<String>) (Object) GET_SCOREBOARD_TEAM_PACKET_ENTRIES.invokeExact(packet)).add(entryToAdd);
+            return packet;
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    @Override
+    public void sendPacket(Player seer, Object packet) {
+        NameTagChanger.INSTANCE.markBypassed(packet);
+        try {
+            Object playerConnection = (Object) GET_PLAYER_CONNECTION.invokeExact((Object) GET_HANDLE.invokeExact((Object) seer));
+            SEND_PACKET.invokeExact(playerConnection, packet);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    @Override
+    public Collection<Player> getTrackingPlayers(Player player) {
+        if (!TRACKER_LOOKUP_SUPPORTED) {
+            return null;
+        }
+        try {
+            Object entityTracker = (Object) GET_ENTITY_TRACKER.invokeExact((Object) CRAFT_WORLD_GET_HANDLE.invokeExact((Object) player.getWorld()));
+            Object trackerEntry = (Object) INT_HASH_MAP_GET.invokeExact((Object) GET_TRACKED_ENTITIES.invokeExact(entityTracker), (Object) player.getEntityId());
+            if (trackerEntry == null) {
+                return Collections.emptyList();
+            }
+            Set<Object> trackedPlayers = (Set<Object>) (Object) GET_TRACKED_PLAYERS.invokeExact(trackerEntry);
+            List<Player> trackingPlayers = Lists.newArrayListWithCapacity(trackedPlayers.size());
+            for (Object entityPlayer : trackedPlayers) {
+                trackingPlayers.add((Player) (Object) GET_BUKKIT_ENTITY.invokeExact(entityPlayer));
+            }
+            return trackingPlayers;
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
     @Override
@@ -250,13 +341,12 @@ public class ChannelPacketHandler extends PacketInterceptor implements IPacketHa
 
     @Override
     public GameProfileWrapper getDefaultPlayerProfile(Player player) {
-        Object entityPlayer = ReflectUtil.invokeMethod(player, GET_HANDLE).getOrThrow();
-        return GameProfileWrapper.fromHandle(ReflectUtil.invokeMethod(entityPlayer, ENTITY_PLAYER_GET_GAME_PROFILE).getOrThrow());
-    }
-
-    private void sendPacket(Player player, Object packet) {
-        Object playerConnection = ReflectUtil.getFieldValue(ReflectUtil.invokeMethod(player, GET_HANDLE).getOrThrow(), PLAYER_CONNECTION).getOrThrow();
-        ReflectUtil.invokeMethod(playerConnection, SEND_PACKET, packet).getOrThrow();
+        try {
+            Object entityPlayer = (Object) GET_HANDLE.invokeExact((Object) player);
+            return GameProfileWrapper.fromHandle((Object) ENTITY_PLAYER_GET_GAME_PROFILE.invokeExact(entityPlayer));
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
     }
 
     private Object getEnumGameMode(GameMode bukkitGameMode) {
@@ -272,6 +362,83 @@ public class ChannelPacketHandler extends PacketInterceptor implements IPacketHa
                 id = 3;
                 break;
         }
-        return ReflectUtil.invokeMethod(null, GET_BY_ID, id).getOrThrow();
+        try {
+            return (Object) GET_BY_ID.invokeExact((Object) id);
+        } catch (Throwable t) {
+            throw propagate(t);
+        }
+    }
+
+    private static Map<EquipmentSlot, Object> getItemSlots() {
+        Map<EquipmentSlot, Object> itemSlots = new EnumMap<>(EquipmentSlot.class);
+        itemSlots.put(EquipmentSlot.HAND, ReflectUtil.invokeMethod(null, ENUM_ITEM_SLOT_BY_NAME, "mainhand").getOrThrow());
+        itemSlots.put(EquipmentSlot.OFF_HAND, ReflectUtil.invokeMethod(null, ENUM_ITEM_SLOT_BY_NAME, "offhand").getOrThrow());
+        itemSlots.put(EquipmentSlot.FEET, ReflectUtil.invokeMethod(null, ENUM_ITEM_SLOT_BY_NAME, "feet").getOrThrow());
+        itemSlots.put(EquipmentSlot.LEGS, ReflectUtil.invokeMethod(null, ENUM_ITEM_SLOT_BY_NAME, "legs").getOrThrow());
+        itemSlots.put(EquipmentSlot.CHEST, ReflectUtil.invokeMethod(null, ENUM_ITEM_SLOT_BY_NAME, "chest").getOrThrow());
+        itemSlots.put(EquipmentSlot.HEAD, ReflectUtil.invokeMethod(null, ENUM_ITEM_SLOT_BY_NAME, "head").getOrThrow());
+        return itemSlots;
+    }
+
+    private static MethodHandle unreflect(Method method) {
+        try {
+            method.setAccessible(true);
+            return generic(MethodHandles.lookup().unreflect(method));
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Failed to create MethodHandle for method " + method, e);
+        }
+    }
+
+    private static MethodHandle unreflectConstructor(Constructor<?> constructor) {
+        try {
+            constructor.setAccessible(true);
+            return generic(MethodHandles.lookup().unreflectConstructor(constructor));
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Failed to create MethodHandle for constructor " + constructor, e);
+        }
+    }
+
+    private static MethodHandle unreflectGetter(Field field) {
+        try {
+            field.setAccessible(true);
+            return generic(MethodHandles.lookup().unreflectGetter(field));
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Failed to create getter MethodHandle for field " + field, e);
+        }
+    }
+
+    private static MethodHandle unreflectSetter(Field field) {
+        try {
+            field.setAccessible(true);
+            return generic(MethodHandles.lookup().unreflectSetter(field));
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Failed to create setter MethodHandle for field " + field, e);
+        }
+    }
+
+    /**
+     * Converts all parameter types of a MethodHandle to Object, as well as the return type
+     * unless it is void. This allows all call sites to use invokeExact without knowing
+     * the NMS types at compile time.
+     */
+    private static MethodHandle generic(MethodHandle handle) {
+        MethodType type = handle.type().generic();
+        if (handle.type().returnType() == void.class) {
+            type = type.changeReturnType(void.class);
+        }
+        return handle.asType(type);
+    }
+
+    private static MethodHandle tryResolve(Supplier<MethodHandle> supplier) {
+        try {
+            return supplier.get();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static RuntimeException propagate(Throwable t) {
+        Throwables.throwIfUnchecked(t);
+        return new RuntimeException(t);
     }
 }
@@ -1,5 +1,7 @@
 package com.bringholm.nametagchanger;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.LinkedHashMultimap;
 import com.google.common.collect.Multimap;
 import com.mojang.authlib.GameProfile;
@@ -11,30 +13,51 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
 
+/**
+ * A game profile. Changed copies are made using withName() and withTextures(),
+ * which share all untouched properties with the original.
+ * <p>
+ * Profiles are immutable unless getProperties() is called, which lets the caller modify
+ * the properties. NameTagChanger never does this with the profiles it uses, so their
+ * hash and handle can be cached, whereas for modifiable profiles they are computed every time.
+ */
 public class GameProfileWrapper {
 
     // Implement reflection when we need to.
     public static GameProfileWrapper fromHandle(Object object) {
         Validate.isTrue(object instanceof GameProfile, "object is not a GameProfile");
         GameProfile gameProfile = (GameProfile) object;
-        GameProfileWrapper wrapper = new GameProfileWrapper(gameProfile.getId(), gameProfile.getName());
+        ImmutableSetMultimap.Builder<String, PropertyWrapper> properties = ImmutableSetMultimap.builder();
         for (Map.Entry<String, Collection<Property>> entry : gameProfile.getProperties().asMap().entrySet()) {
             for (Property property : entry.getValue()) {
-                wrapper.getProperties().put(entry.getKey(), PropertyWrapper.fromHandle(property));
+                properties.put(entry.getKey(), PropertyWrapper.fromHandle(property));
             }
         }
-        return wrapper;
+        return new GameProfileWrapper(gameProfile.getId(), gameProfile.getName(), properties.build());
     }
 
     private final UUID uuid;
     private final String name;
-    private final Multimap<String, PropertyWrapper> properties = LinkedHashMultimap.create();
+    // An ImmutableSetMultimap until getProperties() is called
+    private volatile Multimap<String, PropertyWrapper> properties;
+    // Profiles are compared every time a player's name or skin is changed, so the hash is computed up front.
+    private final int hash;
+    // Only used while the properties are immutable
+    private volatile Object handle;
 
     public GameProfileWrapper(UUID uuid, String name) {
+        this(uuid, name, ImmutableSetMultimap.of());
+    }
+
+    public GameProfileWrapper(UUID uuid, String name, Multimap<String, PropertyWrapper> properties) {
         Validate.notNull(uuid, "uuid cannot be null");
         Validate.notNull(name, "name cannot be null");
+        Validate.notNull(properties, "properties cannot be null");
         this.uuid = uuid;
         this.name = name;
+        // Doesn't copy if the properties are already immutable
+        this.properties = ImmutableSetMultimap.copyOf(properties);
+        this.hash = Objects.hash(uuid, name, this.properties);
     }
 
     public UUID getUUID() {
@@ -45,19 +68,88 @@ public class GameProfileWrapper {
         return name;
     }
 
+    /**
+     * Gets the properties of this profile, which can be modified.
+     * <p>
+     * From then on, the hash and handle of this profile are no longer cached, so
+     * prefer getTextures() for reading and withTextures() for changing the textures.
+     *
+     * @return the modifiable properties
+     */
     public Multimap<String, PropertyWrapper> getProperties() {
+        Multimap<String, PropertyWrapper> properties = this.properties;
+        if (properties instanceof ImmutableSetMultimap) {
+            synchronized (this) {
+                properties = this.properties;
+                if (properties instanceof ImmutableSetMultimap) {
+                    this.properties = properties = LinkedHashMultimap.create(properties);
+                }
+            }
+        }
         return properties;
     }
 
+    public ImmutableSet<PropertyWrapper> getTextures() {
+        // Doesn't copy if the properties are still immutable
+        return ImmutableSet.copyOf(properties.get("textures"));
+    }
+
+    private boolean isModifiable() {
+        return !(properties instanceof ImmutableSetMultimap);
+    }
+
+    /**
+     * Gets a copy of this profile with a different name.
+     *
+     * @param name the new name
+     * @return the new profile, or this profile if the name is the same
+     */
+    public GameProfileWrapper withName(String name) {
+        return this.name.equals(name) ? this : new GameProfileWrapper(uuid, name, properties);
+    }
+
+    /**
+     * Gets a copy of this profile with different textures.
+     *
+     * @param textures the new textures properties, empty for no textures
+     * @return the new profile, or this profile if the textures are the same
+     */
+    public GameProfileWrapper withTextures(Collection<PropertyWrapper> textures) {
+        if (getTextures().equals(ImmutableSet.copyOf(textures))) {
+            return this;
+        }
+        ImmutableSetMultimap.Builder<String, PropertyWrapper> builder = ImmutableSetMultimap.builder();
+        for (Map.Entry<String, PropertyWrapper> entry : properties.entries()) {
+            if (!entry.getKey().equals("textures")) {
+                builder.put(entry);
+            }
+        }
+        builder.putAll("textures", textures);
+        return new GameProfileWrapper(uuid, name, builder.build());
+    }
+
+    /**
+     * Gets the authlib GameProfile for this profile. The handle is only built
+     * the first time this is called and then reused.
+     *
+     * @return the GameProfile handle
+     */
     // Implement reflection when we need to
     public Object getHandle() {
-        GameProfile gameProfile = new GameProfile(this.uuid, this.name);
-        for (Map.Entry<String, Collection<PropertyWrapper>> entry : properties.asMap().entrySet()) {
-            for (PropertyWrapper wrapper : entry.getValue()) {
-                gameProfile.getProperties().put(entry.getKey(), (Property) wrapper.getHandle());
+        Object handle = this.handle;
+        if (handle == null || isModifiable()) {
+            GameProfile gameProfile = new GameProfile(this.uuid, this.name);
+            for (Map.Entry<String, Collection<PropertyWrapper>> entry : properties.asMap().entrySet()) {
+                for (PropertyWrapper wrapper : entry.getValue()) {
+                    gameProfile.getProperties().put(entry.getKey(), (Property) wrapper.getHandle());
+                }
+            }
+            handle = gameProfile;
+            if (!isModifiable()) {
+                this.handle = handle;
             }
         }
-        return gameProfile;
+        return handle;
     }
 
     @Override
@@ -69,12 +161,12 @@ public class GameProfileWrapper {
             return false;
         }
         GameProfileWrapper gameProfile = (GameProfileWrapper) obj;
-        return gameProfile.uuid.equals(this.uuid) && gameProfile.name.equals(this.name) && gameProfile.properties.equals(this.properties);
+        return gameProfile.hashCode() == this.hashCode() && gameProfile.uuid.equals(this.uuid) && gameProfile.name.equals(this.name) && gameProfile.properties.equals(this.properties);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(uuid, name, properties);
+        return isModifiable() ? Objects.hash(uuid, name, properties) : hash;
     }
 
     @Override
@@ -2,24 +2,40 @@ package com.bringholm.nametagchanger;
 
 import org.bukkit.entity.Player;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
 /**
- * An interface for all the packet handler methods
+ * An interface for all the packet handler methods.
+ * <p>
+ * Packets are created separately from being sent, so that the same packet can be
+ * sent to every seer. The created packets must therefore not depend on who they
+ * are sent to.
  * @author AlvinB
  */
 public interface IPacketHandler {
-    void sendTabListRemovePacket(Player playerToRemove, Player seer);
+    Object createTabListRemovePacket(Collection<Player> playersToRemove);
+
+    Object createTabListAddPacket(Map<Player, GameProfileWrapper> playersToAdd);
+
+    Object createEntityDestroyPacket(Collection<Player> playersToDestroy);
 
-    void sendTabListAddPacket(Player playerToAdd, GameProfileWrapper newProfile, Player seer);
+    Object createNamedEntitySpawnPacket(Player playerToSpawn);
 
-    void sendEntityDestroyPacket(Player playerToDestroy, Player seer);
+    List<Object> createEntityEquipmentPackets(Player playerToSpawn);
 
-    void sendNamedEntitySpawnPacket(Player playerToSpawn, Player seer);
+    Object createScoreboardRemovePacket(String playerToRemove, String team);
 
-    void sendEntityEquipmentPacket(Player playerToSpawn, Player seer);
+    Object createScoreboardAddPacket(String playerToAdd, String team);
 
-    void sendScoreboardRemovePacket(String playerToRemove, Player seer, String team);
+    void sendPacket(Player seer, Object packet);
 
-    void sendScoreboardAddPacket(String playerToAdd, Player seer, String team);
+    /**
+     * Gets the players whose clients currently have the specified player spawned,
+     * or null if this cannot be determined on this server version.
+     */
+    Collection<Player> getTrackingPlayers(Player player);
 
     GameProfileWrapper getDefaultPlayerProfile(Player player);
 
@@ -0,0 +1,57 @@
+package com.bringholm.nametagchanger;
+
+import com.bringholm.mojangapiutil.v1_2.MojangAPIUtil;
+import com.bringholm.nametagchanger.skin.Skin;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * A skin that is being loaded, which later requests for the same skin share.
+ * <p>
+ * Keeps track of the priority the skin is needed with, so that the request
+ * to Mojang's servers can be promoted if someone starts waiting for a skin
+ * that was only being prefetched.
+ *
+ * @author AlvinB
+ */
+class InFlightSkin {
+    private final MojangRequestScheduler scheduler;
+    private final CompletableFuture<Skin> future = new CompletableFuture<>();
+    private MojangRequestScheduler.Priority priority;
+    // The request to Mojang's servers, once it has been made
+    private CompletableFuture<?> request;
+
+    InFlightSkin(MojangRequestScheduler scheduler, MojangRequestScheduler.Priority priority) {
+        this.scheduler = scheduler;
+        this.priority = priority;
+    }
+
+    CompletableFuture<Skin> getFuture() {
+        return future;
+    }
+
+    /**
+     * Makes the request to Mojang's servers, with the highest priority
+     * the skin has been requested with so far.
+     */
+    synchronized <T> CompletableFuture<T> submit(Supplier<MojangAPIUtil.Result<T>> request) {
+        CompletableFuture<T> submitted = scheduler.submit(priority, request);
+        this.request = submitted;
+        return submitted;
+    }
+
+    /**
+     * Joins this load with the specified priority, raising the
+     * priority of the request to Mojang's servers if necessary.
+     */
+    synchronized void join(MojangRequestScheduler.Priority priority) {
+        if (priority != MojangRequestScheduler.Priority.INTERACTIVE || this.priority == MojangRequestScheduler.Priority.INTERACTIVE) {
+            return;
+        }
+        this.priority = priority;
+        if (request != null) {
+            scheduler.promote(request);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.bringholm.nametagchanger;
+
+import com.bringholm.mojangapiutil.v1_2.MojangAPIUtil;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.LongUnaryOperator;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Makes all requests to Mojang's servers, so that they can be throttled
+ * to stay within the rate limits.
+ * <p>
+ * Requests are queued by priority and handed to a small pool of workers while the
+ * token bucket has tokens left, so that slow responses don't hold up the queue. Requests failing because of rate limiting, server errors or
+ * timeouts are retried with exponential backoff and jitter.
+ *
+ * @author AlvinB
+ */
+class MojangRequestScheduler {
+    // Mojang allows 600 requests per 10 minutes. A bucket of 60 tokens refilling at 0.9 tokens
+    // per second allows at most 60 + 0.9 * 600 = 600 requests in any 10 minute window.
+    static final int DEFAULT_CAPACITY = 60;
+    static final double DEFAULT_TOKENS_PER_SECOND = 0.9;
+    static final int DEFAULT_MAX_RETRIES = 5;
+    private static final long BASE_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final int WORKER_THREADS = 4;
+    // The format HttpURLConnection uses when an error status is returned
+    private static final Pattern STATUS_CODE = Pattern.compile("HTTP response code: (\\d{3})");
+
+    enum Priority {
+        /**
+         * Requests someone is waiting for.
+         */
+        INTERACTIVE,
+        /**
+         * Requests for things that might be needed later.
+         */
+        PREFETCH
+    }
+
+    private final int capacity;
+    private final double tokensPerNano;
+    private final int maxRetries;
+    private final ScheduledExecutorService executor;
+    private final Executor workers;
+    private final LongSupplier clock;
+    private final LongUnaryOperator jitter;
+    // Only accessed from the executor thread
+    private final PriorityQueue<Request<?>> queue = new PriorityQueue<>(Comparator.<Request<?>, Priority>comparing(request -> request.priority).thenComparingLong(request -> request.sequence));
+    // future -> request that hasn't completed yet, including requests waiting to be retried
+    private final Map<CompletableFuture<?>, Request<?>> requests = new IdentityHashMap<>();
+    private double tokens;
+    private long lastRefill;
+    private boolean wakeUpScheduled;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong queuedRequests = new AtomicLong();
+    private final LongAdder completedRequests = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final LongAdder retriedRequests = new LongAdder();
+
+    MojangRequestScheduler(int capacity, double tokensPerSecond, int maxRetries) {
+        this(capacity, tokensPerSecond, maxRetries, createExecutor(), createWorkers(), System::nanoTime, bound -> ThreadLocalRandom.current().nextLong(bound));
+    }
+
+    /**
+     * @param executor the executor keeping track of the queue and the tokens, which must run one task at a time
+     * @param workers  the executor requests are made on
+     * @param clock    the source of the current time, in nanoseconds
+     * @param jitter   returns a random number between 0 (inclusive) and its argument (exclusive)
+     */
+    MojangRequestScheduler(int capacity, double tokensPerSecond, int maxRetries, ScheduledExecutorService executor, Executor workers, LongSupplier clock, LongUnaryOperator jitter) {
+        this.capacity = capacity;
+        this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.maxRetries = maxRetries;
+        this.tokens = capacity;
+        this.executor = executor;
+        this.workers = workers;
+        this.clock = clock;
+        this.jitter = jitter;
+        this.lastRefill = clock.getAsLong();
+    }
+
+    private static ScheduledExecutorService createExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("NameTagChanger Mojang Requests").setDaemon(true).build());
+        // Don't keep an idle thread around, in case the plugin is reloaded
+        executor.setKeepAliveTime(1, TimeUnit.MINUTES);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static Executor createWorkers() {
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("NameTagChanger Mojang Request Worker #%d").setDaemon(true).build());
+        workers.allowCoreThreadTimeOut(true);
+        return workers;
+    }
+
+    /**
+     * Queues a request to Mojang's servers.
+     *
+     * @param priority the priority of the request
+     * @param request  the request, which is made on one of the scheduler's worker threads
+     * @param <T>      the type of the result
+     * @return a future completed with the value of the result, or exceptionally
+     * with its exception if it was unsuccessful after retrying
+     */
+    <T> CompletableFuture<T> submit(Priority priority, Supplier<MojangAPIUtil.Result<T>> request) {
+        Request<T> queued = new Request<>(priority, sequence.getAndIncrement(), request, clock.getAsLong());
+        queuedRequests.incrementAndGet();
+        executor.execute(() -> {
+            requests.put(queued.future, queued);
+            queue.add(queued);
+            dispatch();
+        });
+        return queued.future;
+    }
+
+    /**
+     * Raises the priority of a request to {@link Priority#INTERACTIVE}, for when
+     * someone starts waiting for a request that was made as a prefetch.
+     *
+     * @param future the future returned when the request was submitted
+     */
+    void promote(CompletableFuture<?> future) {
+        executor.execute(() -> {
+            Request<?> request = requests.get(future);
+            if (request == null || request.priority == Priority.INTERACTIVE) {
+                return;
+            }
+            // Requests waiting to be retried aren't queued, and are queued with their new priority later
+            boolean queued = queue.remove(request);
+            request.priority = Priority.INTERACTIVE;
+            if (queued) {
+                queue.add(request);
+            }
+        });
+    }
+
+    long getQueuedRequests() {
+        return queuedRequests.get();
+    }
+
+    long getRetriedRequests() {
+        return retriedRequests.sum();
+    }
+
+    /**
+     * @return the average time from requests being queued until they completed, in milliseconds
+     */
+    double getAverageLatencyMillis() {
+        long completed = completedRequests.sum();
+        return completed == 0 ? 0 : totalLatencyNanos.sum() / (double) completed / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private void dispatch() {
+        while (!queue.isEmpty()) {
+            refill();
+            if (tokens < 1) {
+                if (!wakeUpScheduled) {
+                    wakeUpScheduled = true;
+                    long waitNanos = (long) Math.ceil((1 - tokens) / tokensPerNano);
+                    executor.schedule(() -> {
+                        wakeUpScheduled = false;
+                        dispatch();
+                    }, waitNanos, TimeUnit.NANOSECONDS);
+                }
+                return;
+            }
+            tokens--;
+            Request<?> request = queue.poll();
+            workers.execute(() -> execute(request));
+        }
+    }
+
+    // Runs on a worker thread. The queue and the tokens are only touched from the executor thread.
+    private <T> void execute(Request<T> request) {
+        MojangAPIUtil.Result<T> result;
+        try {
+            result = request.request.get();
+        } catch (RuntimeException e) {
+            complete(request);
+            request.future.completeExceptionally(e);
+            return;
+        }
+        if (result.wasSuccessful()) {
+            complete(request);
+            request.future.complete(result.getValue());
+            return;
+        }
+        Exception exception = result.getException();
+        if (getStatusCode(exception) == TOO_MANY_REQUESTS) {
+            // Our idea of how many requests we have left is off, so start over
+            executor.execute(() -> tokens = 0);
+        }
+        if (request.attempts < maxRetries && isRetryable(exception)) {
+            long backoff = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << request.attempts);
+            request.attempts++;
+            retriedRequests.increment();
+            executor.schedule(() -> {
+                queue.add(request);
+                dispatch();
+            }, backoff / 2 + jitter.applyAsLong(backoff / 2 + 1), TimeUnit.MILLISECONDS);
+            return;
+        }
+        complete(request);
+        request.future.completeExceptionally(exception);
+    }
+
+    private void complete(Request<?> request) {
+        executor.execute(() -> requests.remove(request.future));
+        queuedRequests.decrementAndGet();
+        completedRequests.increment();
+        totalLatencyNanos.add(clock.getAsLong() - request.queuedAt);
+    }
+
+    private void refill() {
+        long now = clock.getAsLong();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+
+    static boolean isRetryable(Exception exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException || cause instanceof ConnectException) {
+                return true;
+            }
+        }
+        int statusCode = getStatusCode(exception);
+        return statusCode == TOO_MANY_REQUESTS || statusCode >= 500;
+    }
+
+    /**
+     * Gets the HTTP status code a request failed with. HttpURLConnection only reports it
+     * in the message of the IOException it throws, so it has to be parsed from there.
+     *
+     * @param exception the exception the request failed with
+     * @return the status code, or -1 if the exception isn't caused by an error status
+     */
+    static int getStatusCode(Exception exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException && cause.getMessage() != null) {
+                Matcher matcher = STATUS_CODE.matcher(cause.getMessage());
+                if (matcher.find()) {
+                    return Integer.parseInt(matcher.group(1));
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static class Request<T> {
+        // Only changed on the executor thread, while the request isn't queued
+        private Priority priority;
+        // Only changed by the worker making the request
+        private final long sequence;
+        private final Supplier<MojangAPIUtil.Result<T>> request;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private final long queuedAt;
+        private int attempts;
+
+        private Request(Priority priority, long sequence, Supplier<MojangAPIUtil.Result<T>> request, long queuedAt) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.request = request;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
@@ -4,24 +4,45 @@ import com.bringholm.mojangapiutil.v1_2.MojangAPIUtil;
 import com.bringholm.nametagchanger.metrics.Metrics;
 import com.bringholm.nametagchanger.skin.Skin;
 import com.bringholm.nametagchanger.skin.SkinCallBack;
+import com.bringholm.nametagchanger.skin.SkinPrefetcher;
+import com.bringholm.nametagchanger.skin.SkinsCallBack;
 import com.bringholm.reflectutil.v1_1_1.ReflectUtil;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import org.apache.commons.lang.Validate;
 import org.bukkit.Bukkit;
+import org.bukkit.World;
 import org.bukkit.configuration.serialization.ConfigurationSerialization;
 import org.bukkit.entity.Player;
+import org.bukkit.event.HandlerList;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.scheduler.BukkitRunnable;
-import org.bukkit.scoreboard.Team;
+import org.bukkit.scheduler.BukkitTask;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.logging.Level;
 
 /**
  * Allows changing of a player's overhead name using packet manipulation
@@ -29,25 +50,47 @@ import java.util.concurrent.TimeUnit;
  * @author AlvinB
  */
 public class NameTagChanger {
-    // Access to this must be asynchronous!
-    private static final LoadingCache<UUID, Skin> SKIN_CACHE = CacheBuilder.newBuilder().expireAfterWrite(5, TimeUnit.MINUTES).build(new CacheLoader<UUID, Skin>() {
+    private static final MojangRequestScheduler MOJANG_REQUESTS = new MojangRequestScheduler(MojangRequestScheduler.DEFAULT_CAPACITY,
+            MojangRequestScheduler.DEFAULT_TOKENS_PER_SECOND, MojangRequestScheduler.DEFAULT_MAX_RETRIES);
+    /**
+     * The default maximum weight of the skin cache, in characters of skin data.
+     * A skin usually weighs a bit over a thousand characters.
+     */
+    public static final long DEFAULT_SKIN_CACHE_MAXIMUM_WEIGHT = 32 * 1024 * 1024;
+    private static final CacheLoader<UUID, Skin> SKIN_LOADER = new CacheLoader<UUID, Skin>() {
         @Override
-        public Skin load(UUID uuid) throws Exception {
-            MojangAPIUtil.Result<MojangAPIUtil.SkinData> result = MojangAPIUtil.getSkinData(uuid);
-            if (result.wasSuccessful()) {
-                if (result.getValue() != null) {
-                    MojangAPIUtil.SkinData data = result.getValue();
-                    if (data.getSkinURL() == null && data.getCapeURL() == null) {
-                        return Skin.EMPTY_SKIN;
-                    }
-                    return new Skin(data.getUUID(), data.getBase64(), data.getSignedBase64());
+        public Skin load(UUID uuid) {
+            // getSkinAsync loads skins without blocking and puts them into the cache, the cache only refreshes them
+            throw new UnsupportedOperationException("Skins are loaded with getSkinAsync");
+        }
+
+        @Override
+        public ListenableFuture<Skin> reload(UUID uuid, Skin oldValue) {
+            // If this fails, the cache keeps the old skin
+            SettableFuture<Skin> future = SettableFuture.create();
+            MOJANG_REQUESTS.submit(MojangRequestScheduler.Priority.PREFETCH, () -> MojangAPIUtil.getSkinData(uuid)).whenComplete((data, e) -> {
+                if (e != null) {
+                    future.setException(e);
+                    return;
                 }
-            } else {
-                throw result.getException();
-            }
-            return Skin.EMPTY_SKIN;
+                Skin skin = toSkin(data);
+                future.set(skin);
+                SkinDiskCache diskCache = skinDiskCache;
+                if (diskCache != null) {
+                    // This runs on one of the few threads making Mojang requests, which shouldn't wait for the disk
+                    INSTANCE.getSkinExecutor().execute(() -> diskCache.put(uuid, skin));
+                }
+            });
+            return future;
         }
-    });
+    };
+    // Access to this must be asynchronous!
+    private static volatile LoadingCache<UUID, Skin> skinCache = buildSkinCache(DEFAULT_SKIN_CACHE_MAXIMUM_WEIGHT);
+    private static volatile SkinDiskCache skinDiskCache;
+    // Skins loaded by getSkinAsync are put into the cache directly, so their loads are counted here
+    private static final LongAdder SKIN_LOAD_SUCCESSES = new LongAdder();
+    private static final LongAdder SKIN_LOAD_FAILURES = new LongAdder();
+    private static final LongAdder SKIN_LOAD_NANOS = new LongAdder();
 
     /**
      * The version of NameTagChanger
@@ -59,14 +102,32 @@ public class NameTagChanger {
      */
     public static final NameTagChanger INSTANCE = new NameTagChanger();
 
-    boolean sendingPackets;
     private IPacketHandler packetHandler;
-    HashMap<UUID, GameProfileWrapper> gameProfiles = Maps.newHashMap();
+    // Read by the packet listeners from the netty threads, so changes are published
+    // as new immutable snapshots rather than by modifying the current one.
+    private final AtomicReference<ProfileSnapshot> profiles = new AtomicReference<>(ProfileSnapshot.EMPTY);
+    // Packets sent by NameTagChanger itself, which the packet listeners should leave untouched.
+    private final Set<Object> bypassedPackets = Collections.newSetFromMap(new MapMaker().weakKeys().makeMap());
+    private final LongAdder skippedPlayerInfoPackets = new LongAdder();
+    private final WorldIndex worldIndex = new WorldIndex();
+    private final Map<UUID, GameProfileWrapper> defaultProfiles = new ConcurrentHashMap<>();
+    private final UsernameBatcher usernameBatcher = new UsernameBatcher(this, MOJANG_REQUESTS);
+    private final Map<UUID, InFlightSkin> inFlightSkins = new ConcurrentHashMap<>();
+    private final LongAdder coalescedSkinRequests = new LongAdder();
+    private volatile Executor skinExecutor;
+    private volatile SkinPrefetcher skinPrefetcher;
+    private PlayerListener listener;
     /**
      * The plugin to assign packet/event listeners to
      */
     private Plugin plugin;
     private boolean enabled;
+    private boolean deferUpdates;
+    // Players waiting for the next flush, mapped to the name other players saw before the first
+    // change since the last flush (or null if their scoreboard team entries don't need updating).
+    private final Map<UUID, String> pendingUpdates = Maps.newLinkedHashMap();
+    private BukkitTask flushTask;
+    private UpdatePipeline updatePipeline;
 
     /**
      * Enables the packet handler as well as trying to find the appropriate plugin to use. The plugin
@@ -92,18 +153,8 @@ public class NameTagChanger {
      */
     public void setPlayerSkin(Player player, Skin skin) {
         Validate.isTrue(enabled, "NameTagChanger is disabled");
-        Validate.notNull(player, "player cannot be null");
-        Validate.notNull(skin, "skin cannot be null");
-        Validate.isTrue(!skin.equals(getDefaultSkinFromPlayer(player)), "Skin cannot be the default skin of the player! If you intended to reset the skin, use resetPlayerSkin() instead.");
-        GameProfileWrapper profile = gameProfiles.get(player.getUniqueId());
-        if (profile == null) {
-            profile = packetHandler.getDefaultPlayerProfile(player);
-        }
-        profile.getProperties().removeAll("textures");
-        if (skin != Skin.EMPTY_SKIN) {
-            profile.getProperties().put("textures", new GameProfileWrapper.PropertyWrapper("textures", skin.getBase64(), skin.getSignedBase64()));
-        }
-        gameProfiles.put(player.getUniqueId(), profile);
+        validateSkin(player, skin);
+        applySkin(player, skin);
     }
 
     /**
@@ -116,16 +167,10 @@ public class NameTagChanger {
      */
     public void resetPlayerSkin(Player player) {
         Validate.isTrue(enabled, "NameTagChanger is disabled");
-        if (player == null || !gameProfiles.containsKey(player.getUniqueId())) {
+        if (player == null) {
             return;
         }
-        GameProfileWrapper profile = gameProfiles.get(player.getUniqueId());
-        profile.getProperties().removeAll("textures");
-        GameProfileWrapper defaultProfile = packetHandler.getDefaultPlayerProfile(player);
-        if (defaultProfile.getProperties().containsKey("textures")) {
-            profile.getProperties().putAll("textures", defaultProfile.getProperties().get("textures"));
-        }
-        checkForRemoval(player);
+        applySkinReset(player);
     }
 
     /**
@@ -137,19 +182,10 @@ public class NameTagChanger {
      */
     public void changePlayerName(Player player, String newName) {
         Validate.isTrue(enabled, "NameTagChanger is disabled");
-        Validate.notNull(player, "player cannot be null");
-        Validate.notNull(newName, "newName cannot be null");
-        Validate.isTrue(!newName.equals(player.getName()), "The new name cannot be the same as the player's! If you intended to reset the player's name, use resetPlayerName()!");
-        Validate.isTrue(newName.length() <= 16, "newName cannot be longer than 16 characters!");
-        GameProfileWrapper profile = new GameProfileWrapper(player.getUniqueId(), newName);
-        if (gameProfiles.containsKey(player.getUniqueId())) {
-            profile.getProperties().putAll(gameProfiles.get(player.getUniqueId()).getProperties());
-        } else {
-            // If the player doesn't already have a skin specified, make sure to carry over their default one.
-            profile.getProperties().putAll(packetHandler.getDefaultPlayerProfile(player).getProperties());
-        }
-        gameProfiles.put(player.getUniqueId(), profile);
-        updatePlayer(player, player.getName());
+        validateName(player, newName);
+        String oldName = getDisplayedName(player);
+        applyName(player, newName);
+        updatePlayer(player, oldName);
     }
 
     /**
@@ -159,26 +195,178 @@ public class NameTagChanger {
      */
     public void resetPlayerName(Player player) {
         Validate.isTrue(enabled, "NameTagChanger is disabled");
-        if (player == null || !gameProfiles.containsKey(player.getUniqueId())) {
+        if (player == null || !getSnapshot().hasProfile(player.getUniqueId())) {
+            return;
+        }
+        String oldName = getDisplayedName(player);
+        applyNameReset(player);
+        updatePlayer(player, oldName);
+    }
+
+    /**
+     * Changes the names and skins of several players at once. All changes
+     * made to the batch passed to the consumer are applied together once the
+     * consumer returns, after which every seer receives a single tab list
+     * remove packet, a single tab list add packet and a single entity destroy
+     * packet covering all of the changed players.
+     * <p>
+     * Unlike setPlayerSkin() and resetPlayerSkin(), skin changes made through
+     * a batch are updated automatically, so no call to updatePlayer() is needed.
+     *
+     * @param consumer the consumer making the changes to the batch
+     */
+    public void batch(Consumer<Batch> consumer) {
+        Validate.isTrue(enabled, "NameTagChanger is disabled");
+        Validate.notNull(consumer, "consumer cannot be null");
+        Batch batch = new Batch(this);
+        consumer.accept(batch);
+        batch.commit();
+    }
+
+    void validateSkin(Player player, Skin skin) {
+        Validate.notNull(player, "player cannot be null");
+        Validate.notNull(skin, "skin cannot be null");
+        Validate.isTrue(!skin.equals(getDefaultSkinFromPlayer(player)), "Skin cannot be the default skin of the player! If you intended to reset the skin, use resetPlayerSkin() instead.");
+    }
+
+    void validateName(Player player, String newName) {
+        Validate.notNull(player, "player cannot be null");
+        Validate.notNull(newName, "newName cannot be null");
+        Validate.isTrue(!newName.equals(player.getName()), "The new name cannot be the same as the player's! If you intended to reset the player's name, use resetPlayerName()!");
+        Validate.isTrue(newName.length() <= 16, "newName cannot be longer than 16 characters!");
+    }
+
+    void applySkin(Player player, Skin skin) {
+        GameProfileWrapper oldProfile = getSnapshot().getProfile(player.getUniqueId());
+        GameProfileWrapper profile = (oldProfile == null ? getDefaultProfile(player) : oldProfile).withTextures(skin == Skin.EMPTY_SKIN
+                ? Collections.emptySet() : Collections.singleton(new GameProfileWrapper.PropertyWrapper("textures", skin.getBase64(), skin.getSignedBase64())));
+        updateSnapshot(snapshot -> snapshot.withProfile(player.getUniqueId(), profile));
+    }
+
+    void applySkinReset(Player player) {
+        GameProfileWrapper oldProfile = getSnapshot().getProfile(player.getUniqueId());
+        if (oldProfile == null) {
             return;
         }
-        GameProfileWrapper oldProfile = gameProfiles.get(player.getUniqueId());
-        GameProfileWrapper newProfile = packetHandler.getDefaultPlayerProfile(player);
-        newProfile.getProperties().removeAll("textures");
-        if (oldProfile.getProperties().containsKey("textures")) {
-            newProfile.getProperties().putAll("textures", oldProfile.getProperties().get("textures"));
+        GameProfileWrapper profile = oldProfile.withTextures(getDefaultProfile(player).getTextures());
+        updateSnapshot(snapshot -> snapshot.withProfile(player.getUniqueId(), profile));
+        checkForRemoval(player);
+    }
+
+    void applyName(Player player, String newName) {
+        GameProfileWrapper oldProfile = getSnapshot().getProfile(player.getUniqueId());
+        // If the player doesn't already have a skin specified, make sure to carry over their default one.
+        GameProfileWrapper profile = (oldProfile == null ? getDefaultProfile(player) : oldProfile).withName(newName);
+        updateSnapshot(snapshot -> snapshot.withProfile(player.getUniqueId(), profile).withChangedName(player.getName(), newName));
+    }
+
+    void applyNameReset(Player player) {
+        GameProfileWrapper oldProfile = getSnapshot().getProfile(player.getUniqueId());
+        if (oldProfile == null) {
+            return;
         }
-        gameProfiles.put(player.getUniqueId(), newProfile);
-        updatePlayer(player, oldProfile.getName());
+        GameProfileWrapper newProfile = getDefaultProfile(player).withTextures(oldProfile.getTextures());
+        updateSnapshot(snapshot -> snapshot.withProfile(player.getUniqueId(), newProfile).withoutChangedName(player.getName()));
         checkForRemoval(player);
     }
 
+    /**
+     * Gets the name other players currently see for a player.
+     */
+    String getDisplayedName(Player player) {
+        GameProfileWrapper profile = getSnapshot().getProfile(player.getUniqueId());
+        return profile == null ? player.getName() : profile.getName();
+    }
+
     private void checkForRemoval(Player player) {
-        if (gameProfiles.get(player.getUniqueId()).equals(packetHandler.getDefaultPlayerProfile(player))) {
-            gameProfiles.remove(player.getUniqueId());
+        if (getSnapshot().getProfile(player.getUniqueId()).equals(getDefaultProfile(player))) {
+            updateSnapshot(snapshot -> snapshot.withoutProfile(player.getUniqueId()).withoutChangedName(player.getName()));
+        }
+    }
+
+    ProfileSnapshot getSnapshot() {
+        return profiles.get();
+    }
+
+    private void updateSnapshot(UnaryOperator<ProfileSnapshot> operator) {
+        profiles.updateAndGet(operator);
+    }
+
+    /**
+     * Marks a packet as sent by NameTagChanger, so that the packet listeners
+     * do not try to modify it. Packets are only held weakly.
+     *
+     * @param packet the packet handle
+     */
+    void markBypassed(Object packet) {
+        bypassedPackets.add(packet);
+    }
+
+    boolean isBypassed(Object packet) {
+        return bypassedPackets.contains(packet);
+    }
+
+    /**
+     * Replaces the original names of players with changed names in a collection
+     * of scoreboard team entries. Every entry costs a single lookup, and nothing
+     * is allocated unless an entry actually has to be replaced.
+     *
+     * @param entries the team entries of a scoreboard team packet
+     */
+    void renameScoreboardEntries(Collection<String> entries) {
+        ProfileSnapshot snapshot = getSnapshot();
+        if (!snapshot.hasChangedNames()) {
+            return;
+        }
+        List<String> entriesToRename = null;
+        for (String entry : entries) {
+            if (snapshot.getChangedName(entry) != null) {
+                if (entriesToRename == null) {
+                    entriesToRename = Lists.newArrayList();
+                }
+                entriesToRename.add(entry);
+            }
+        }
+        if (entriesToRename != null) {
+            for (String entry : entriesToRename) {
+                entries.remove(entry);
+                entries.add(snapshot.getChangedName(entry));
+            }
+        }
+    }
+
+    /**
+     * Gets the profile a player has without any changes. This is read from the
+     * player the first time it is needed, so that changes other plugins make while
+     * the player joins are included, and then kept until they quit. Profiles of players who are
+     * offline are read every time, so that they aren't kept after quitting.
+     */
+    GameProfileWrapper getDefaultProfile(Player player) {
+        if (!player.isOnline()) {
+            return packetHandler.getDefaultPlayerProfile(player);
+        }
+        return defaultProfiles.computeIfAbsent(player.getUniqueId(), uuid -> packetHandler.getDefaultPlayerProfile(player));
+    }
+
+    void handleJoin(Player player) {
+        worldIndex.add(player);
+        GameProfileWrapper profile = getSnapshot().getProfile(player.getUniqueId());
+        if (profile != null && !profile.getName().equals(player.getName())) {
+            updateSnapshot(snapshot -> snapshot.withChangedName(player.getName(), profile.getName()));
         }
     }
 
+    void handleQuit(Player player) {
+        worldIndex.remove(player, player.getWorld());
+        defaultProfiles.remove(player.getUniqueId());
+        updateSnapshot(snapshot -> snapshot.withoutChangedName(player.getName()));
+    }
+
+    void handleWorldChange(Player player, World from) {
+        worldIndex.remove(player, from);
+        worldIndex.add(player);
+    }
+
     /**
      * Gets a player's changed name
      *
@@ -187,7 +375,7 @@ public class NameTagChanger {
      */
     public String getChangedName(Player player) {
         Validate.isTrue(enabled, "NameTagChanger is disabled");
-        GameProfileWrapper profile = gameProfiles.get(player.getUniqueId());
+        GameProfileWrapper profile = getSnapshot().getProfile(player.getUniqueId());
         // If the name is the same as the original, this means that it is not changed, and
         // probably that a skin is present.
         return (profile == null || profile.getName().equals(player.getName()) ? null : profile.getName());
@@ -201,7 +389,7 @@ public class NameTagChanger {
      */
     public Skin getChangedSkin(Player player) {
         Validate.isTrue(enabled, "NameTagChanger is disabled");
-        GameProfileWrapper profile = gameProfiles.get(player.getUniqueId());
+        GameProfileWrapper profile = getSnapshot().getProfile(player.getUniqueId());
         if (profile == null) {
             return null;
         }
@@ -222,7 +410,7 @@ public class NameTagChanger {
      * @return the player's default skin
      */
     public Skin getDefaultSkinFromPlayer(Player player) {
-        return getSkinFromGameProfile(packetHandler.getDefaultPlayerProfile(player));
+        return getSkinFromGameProfile(getDefaultProfile(player));
     }
 
     /**
@@ -234,15 +422,11 @@ public class NameTagChanger {
     public Skin getSkinFromGameProfile(GameProfileWrapper profile) {
         Validate.isTrue(enabled, "NameTagChanger is disabled");
         Validate.notNull(profile, "profile cannot be null");
-        if (profile.getProperties().containsKey("textures")) {
-            GameProfileWrapper.PropertyWrapper property = Iterables.getFirst(profile.getProperties().get("textures"), null);
-            if (property == null) {
-                return Skin.EMPTY_SKIN;
-            } else {
-                return new Skin(profile.getUUID(), property.getValue(), property.getSignature());
-            }
-        } else {
+        GameProfileWrapper.PropertyWrapper property = Iterables.getFirst(profile.getTextures(), null);
+        if (property == null) {
             return Skin.EMPTY_SKIN;
+        } else {
+            return new Skin(profile.getUUID(), property.getValue(), property.getSignature());
         }
     }
 
@@ -261,44 +445,183 @@ public class NameTagChanger {
     }
 
     private void updatePlayer(Player player, String oldName) {
-        Validate.isTrue(enabled, "NameTagChanger is disabled");
-        GameProfileWrapper newProfile = gameProfiles.get(player.getUniqueId());
-        if (newProfile == null) {
-            newProfile = packetHandler.getDefaultPlayerProfile(player);
+        requestUpdates(Collections.singletonMap(player, oldName));
+    }
+
+    /**
+     * Sets whether updates should be deferred until the end of the current tick.
+     * <p>
+     * When enabled, updatePlayer(), changePlayerName(), resetPlayerName() and batches
+     * only mark the affected players as needing an update. All marked players are then
+     * updated at once in the next tick, so that several changes to the same player
+     * within one tick only result in a single set of packets reflecting the final state.
+     * <p>
+     * This is disabled by default.
+     *
+     * @param deferUpdates whether updates should be deferred
+     */
+    public void setDeferUpdates(boolean deferUpdates) {
+        this.deferUpdates = deferUpdates;
+        if (!deferUpdates) {
+            flushUpdates();
         }
-        List<Team> scoreboardTeamsToUpdate = Lists.newArrayList();
-        sendingPackets = true;
-        for (Player otherPlayer : Bukkit.getOnlinePlayers()) {
-            if (otherPlayer.equals(player)) {
-                if (otherPlayer.getScoreboard().getEntryTeam(player.getName()) != null) {
-                    scoreboardTeamsToUpdate.add(otherPlayer.getScoreboard().getEntryTeam(player.getName()));
-                }
-                continue;
+    }
+
+    /**
+     * Checks whether updates are deferred until the end of the current tick.
+     *
+     * @return whether updates are deferred
+     * @see #setDeferUpdates(boolean)
+     */
+    public boolean isDeferUpdates() {
+        return deferUpdates;
+    }
+
+    /**
+     * Immediately sends all updates that were deferred, instead of waiting
+     * for the next tick. Does nothing if no updates are pending.
+     *
+     * @see #setDeferUpdates(boolean)
+     */
+    public void flushUpdates() {
+        if (flushTask != null) {
+            flushTask.cancel();
+            flushTask = null;
+        }
+        if (pendingUpdates.isEmpty()) {
+            return;
+        }
+        Map<Player, String> players = Maps.newLinkedHashMap();
+        for (Map.Entry<UUID, String> entry : pendingUpdates.entrySet()) {
+            Player player = Bukkit.getPlayer(entry.getKey());
+            // Players who left since being marked don't need updating anymore
+            if (player != null) {
+                players.put(player, entry.getValue());
             }
-            if (otherPlayer.canSee(player)) {
-                packetHandler.sendTabListRemovePacket(player, otherPlayer);
-                packetHandler.sendTabListAddPacket(player, newProfile, otherPlayer);
-                if (otherPlayer.getWorld().equals(player.getWorld())) {
-                    packetHandler.sendEntityDestroyPacket(player, otherPlayer);
-                    packetHandler.sendNamedEntitySpawnPacket(player, otherPlayer);
-                    packetHandler.sendEntityEquipmentPacket(player, otherPlayer);
-                }
+        }
+        pendingUpdates.clear();
+        if (!players.isEmpty()) {
+            updatePlayers(players);
+        }
+    }
+
+    /**
+     * Updates players right away, or marks them for the next flush if updates are deferred.
+     *
+     * @param players the players to update, mapped to the name other players saw before the
+     *                change, or null if their scoreboard team entries don't need updating
+     */
+    void requestUpdates(Map<Player, String> players) {
+        if (!deferUpdates) {
+            updatePlayers(players);
+            return;
+        }
+        for (Map.Entry<Player, String> entry : players.entrySet()) {
+            UUID uuid = entry.getKey().getUniqueId();
+            // Keep the name from before the first change, as that is what the other players still see.
+            if (!pendingUpdates.containsKey(uuid) || pendingUpdates.get(uuid) == null) {
+                pendingUpdates.put(uuid, entry.getValue());
             }
-            // The player we want to rename is in a scoreboard team.
-            if (otherPlayer.getScoreboard().getEntryTeam(player.getName()) != null) {
-                scoreboardTeamsToUpdate.add(otherPlayer.getScoreboard().getEntryTeam(player.getName()));
+        }
+        if (flushTask == null) {
+            flushTask = new BukkitRunnable() {
+                @Override
+                public void run() {
+                    flushTask = null;
+                    flushUpdates();
+                }
+            }.runTask(plugin);
+        }
+    }
+
+    /**
+     * Sends packets to update several players at once.
+     *
+     * @param players the players to update, mapped to the name other players saw before
+     *                the update, or null if their scoreboard team entries don't need updating
+     */
+    void updatePlayers(Map<Player, String> players) {
+        Validate.isTrue(enabled, "NameTagChanger is disabled");
+        if (updatePipeline != null) {
+            updatePipeline.enqueue(players);
+            return;
+        }
+        UpdateContext context = createUpdateContext();
+        Set<Player> worldSeers = getWorldSeers(players.keySet());
+        for (Player otherPlayer : worldSeers) {
+            context.sendTo(otherPlayer, players, true);
+        }
+        // Everyone else still sees the players in the tab list, but can't have them spawned
+        for (Player otherPlayer : Bukkit.getOnlinePlayers()) {
+            if (!worldSeers.contains(otherPlayer)) {
+                context.sendTo(otherPlayer, players, false);
             }
         }
-        if (oldName != null) {
-            String newName = newProfile.getName();
-            for (Team team : scoreboardTeamsToUpdate) {
-                Bukkit.getOnlinePlayers().stream().filter(p -> p.getScoreboard() == team.getScoreboard()).forEach(p -> {
-                    packetHandler.sendScoreboardRemovePacket(oldName, p, team.getName());
-                    packetHandler.sendScoreboardAddPacket(newName, p, team.getName());
-                });
+    }
+
+    /**
+     * Gets the online players in the same world as any of the specified players.
+     */
+    Set<Player> getWorldSeers(Collection<Player> players) {
+        Set<World> worlds = Sets.newHashSet();
+        Set<Player> seers = Sets.newHashSet();
+        for (Player player : players) {
+            if (worlds.add(player.getWorld())) {
+                seers.addAll(worldIndex.getPlayers(player.getWorld()));
             }
         }
-        sendingPackets = false;
+        return seers;
+    }
+
+    /**
+     * Spreads the packets sent by updates over several ticks, instead of sending
+     * all of them in the tick the update was made. This is useful when updating
+     * a lot of players at once, which might otherwise cause lag spikes.
+     * <p>
+     * Each tick, other players are sent their pending updates until either limit is
+     * reached, starting with those that are closest to the updated players. If the
+     * server is running behind, the limits are lowered accordingly. Everyone still
+     * ends up seeing the latest state of every player.
+     *
+     * @param maxMillisPerTick  the maximum time to spend sending updates each tick, or 0 for no limit
+     * @param maxPacketsPerTick the maximum amount of packets to send each tick, or 0 for no limit
+     */
+    public void setUpdateBudget(long maxMillisPerTick, int maxPacketsPerTick) {
+        Validate.isTrue(enabled, "NameTagChanger is disabled");
+        Validate.isTrue(maxMillisPerTick >= 0, "maxMillisPerTick cannot be negative");
+        Validate.isTrue(maxPacketsPerTick >= 0, "maxPacketsPerTick cannot be negative");
+        if (updatePipeline == null) {
+            updatePipeline = new UpdatePipeline(this, plugin);
+        }
+        updatePipeline.setBudget(TimeUnit.MILLISECONDS.toNanos(maxMillisPerTick), maxPacketsPerTick);
+    }
+
+    /**
+     * Stops spreading updates over several ticks, and immediately sends
+     * all updates that are still pending.
+     *
+     * @see #setUpdateBudget(long, int)
+     */
+    public void removeUpdateBudget() {
+        if (updatePipeline != null) {
+            updatePipeline.flush();
+            updatePipeline = null;
+        }
+    }
+
+    /**
+     * Gets the number of players that still have pending updates to be
+     * sent to them when an update budget is set.
+     *
+     * @return the number of players with pending updates
+     * @see #setUpdateBudget(long, int)
+     */
+    public int getQueuedUpdates() {
+        return updatePipeline == null ? 0 : updatePipeline.getQueuedSeers();
+    }
+
+    UpdateContext createUpdateContext() {
+        return new UpdateContext(packetHandler, getSnapshot(), worldIndex, this::getDefaultProfile);
     }
 
     /**
@@ -308,12 +631,27 @@ public class NameTagChanger {
      */
     public Map<UUID, String> getChangedPlayers() {
         Map<UUID, String> changedPlayers = Maps.newHashMap();
-        for (Map.Entry<UUID, GameProfileWrapper> entry : this.gameProfiles.entrySet()) {
+        for (Map.Entry<UUID, GameProfileWrapper> entry : getSnapshot().getProfiles().entrySet()) {
             changedPlayers.put(entry.getKey(), entry.getValue().getName());
         }
         return Collections.unmodifiableMap(changedPlayers);
     }
 
+    /**
+     * Gets the number of player info packets that were passed through without
+     * being rewritten because their action does not carry any profile data
+     * (everything except ADD_PLAYER).
+     *
+     * @return the number of skipped player info packets
+     */
+    public long getSkippedPlayerInfoPackets() {
+        return skippedPlayerInfoPackets.sum();
+    }
+
+    void incrementSkippedPlayerInfoPackets() {
+        skippedPlayerInfoPackets.increment();
+    }
+
     /**
      * Checks if NameTagChanger is enabled.
      *
@@ -329,8 +667,8 @@ public class NameTagChanger {
      */
     public void disable() {
         Validate.isTrue(enabled, "NameTagChanger is already disabled");
-        // Prevent ConcurrentModificationException by wrapping keySet in a list
-        for (UUID uuid : new ArrayList<>(gameProfiles.keySet())) {
+        // The snapshot is immutable, so resetting players while iterating it is safe
+        for (UUID uuid : getSnapshot().getProfiles().keySet()) {
             Player player = Bukkit.getPlayer(uuid);
             if (player == null) {
                 continue;
@@ -338,7 +676,14 @@ public class NameTagChanger {
             resetPlayerName(player);
             resetPlayerSkin(player);
         }
-        gameProfiles.clear();
+        flushUpdates();
+        removeUpdateBudget();
+        disableSkinDiskCache();
+        profiles.set(ProfileSnapshot.EMPTY);
+        HandlerList.unregisterAll(listener);
+        listener = null;
+        worldIndex.clear();
+        defaultProfiles.clear();
         packetHandler.shutdown();
         packetHandler = null;
         enabled = false;
@@ -363,6 +708,12 @@ public class NameTagChanger {
         } else {
             packetHandler = new ChannelPacketHandler(plugin);
         }
+        listener = new PlayerListener(this);
+        Bukkit.getPluginManager().registerEvents(listener, plugin);
+        // Players might already be online if we're enabled after startup
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            worldIndex.add(player);
+        }
         enabled = true;
         Metrics metrics = new Metrics(plugin);
         metrics.addCustomChart(new Metrics.SimplePie("packet_implementation", () -> packetHandler instanceof ProtocolLibPacketHandler ? "ProtocolLib" : "ChannelInjector"));
@@ -372,6 +723,21 @@ public class NameTagChanger {
         System.out.println("[NameTagChanger] " + message);
     }
 
+    void logMessage(Level level, String message, Exception e) {
+        if (level == Level.SEVERE) {
+            System.err.println("[NameTagChanger] " + message);
+        } else {
+            printMessage(message);
+        }
+        if (e != null) {
+            e.printStackTrace();
+        }
+    }
+
+    Plugin getPlugin() {
+        return plugin;
+    }
+
     /**
      * Sets the plugin instance to use for registering packet/event listeners.
      * This is done automatically by the constructor, so this should only be used
@@ -398,38 +764,221 @@ public class NameTagChanger {
      *
      * @param username the username to get the skin of
      * @param callBack the call back to handle the result of the request
+     * @see #getSkinAsync(String)
      */
     public void getSkin(String username, SkinCallBack callBack) {
-        new BukkitRunnable() {
-            @Override
-            public void run() {
-                MojangAPIUtil.Result<Map<String, MojangAPIUtil.Profile>> result = MojangAPIUtil.getUUID(Collections.singletonList(username));
-                if (result.wasSuccessful()) {
-                    if (result.getValue() == null || result.getValue().isEmpty()) {
-                        new BukkitRunnable() {
-                            @Override
-                            public void run() {
-                                callBack.callBack(Skin.EMPTY_SKIN, true, null);
-                            }
-                        }.runTask(plugin);
-                        return;
-                    }
-                    for (Map.Entry<String, MojangAPIUtil.Profile> entry : result.getValue().entrySet()) {
-                        if (entry.getKey().equalsIgnoreCase(username)) {
-                            getSkin(entry.getValue().getUUID(), callBack);
-                            return;
-                        }
+        callBackOnMainThread(getSkinAsync(username), callBack);
+    }
+
+    /**
+     * Gets the skins for several usernames at once.
+     * <p>
+     * Username lookups are sent to Mojang's servers in batches, which is a lot
+     * faster and less likely to be rate limited than getting each skin separately.
+     * If no users with a specified username can be found, the skin for that username
+     * will be Skin.EMPTY_SKIN.
+     * <p>
+     * The call back will be fired once all skins have been fetched, and will
+     * always be fired on the main thread.
+     *
+     * @param usernames the usernames to get the skins of
+     * @param callBack  the call back to handle the results of the requests
+     */
+    public void getSkins(Collection<String> usernames, SkinsCallBack callBack) {
+        Validate.notNull(usernames, "usernames cannot be null");
+        Validate.notNull(callBack, "callBack cannot be null");
+        Map<String, CompletableFuture<Skin>> futures = Maps.newLinkedHashMap();
+        for (String username : usernames) {
+            futures.computeIfAbsent(username, this::getSkinAsync);
+        }
+        CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).whenCompleteAsync((result, e) -> {
+            Map<String, Skin> skins = Maps.newLinkedHashMap();
+            Map<String, Exception> exceptions = Maps.newLinkedHashMap();
+            for (Map.Entry<String, CompletableFuture<Skin>> entry : futures.entrySet()) {
+                try {
+                    skins.put(entry.getKey(), entry.getValue().join());
+                } catch (CompletionException | CancellationException ex) {
+                    exceptions.put(entry.getKey(), asException(ex));
+                }
+            }
+            callBack.callBack(skins, exceptions);
+        }, getMainThreadExecutor());
+    }
+
+    /**
+     * Gets the skin for a username.
+     * <p>
+     * The returned future is completed asynchronously. To use the skin
+     * on the main thread, continue with {@link #getMainThreadExecutor()}, e.g.
+     * {@code getSkinAsync("AlvinB").thenAcceptAsync(skin -> ..., getMainThreadExecutor())}.
+     * If no users with the specified username can be found, the future
+     * is completed with Skin.EMPTY_SKIN.
+     *
+     * @param username the username to get the skin of
+     * @return a future completed with the skin
+     */
+    public CompletableFuture<Skin> getSkinAsync(String username) {
+        Validate.notNull(username, "username cannot be null");
+        return getSkinAsync(username, MojangRequestScheduler.Priority.INTERACTIVE);
+    }
+
+    private CompletableFuture<Skin> getSkinAsync(String username, MojangRequestScheduler.Priority priority) {
+        return usernameBatcher.lookup(username, priority).thenCompose(uuid -> uuid == null ? CompletableFuture.completedFuture(Skin.EMPTY_SKIN) : getSkinAsync(uuid, priority));
+    }
+
+    /**
+     * Gets the skin for a UUID.
+     * <p>
+     * If the skin is cached, the returned future is already completed. Otherwise
+     * it is completed asynchronously, by the executor set with {@link #setSkinExecutor(Executor)}.
+     * To use the skin on the main thread, continue with {@link #getMainThreadExecutor()}.
+     *
+     * @param uuid the uuid to get the skin of
+     * @return a future completed with the skin
+     */
+    public CompletableFuture<Skin> getSkinAsync(UUID uuid) {
+        Validate.notNull(uuid, "uuid cannot be null");
+        return getSkinAsync(uuid, MojangRequestScheduler.Priority.INTERACTIVE);
+    }
+
+    private CompletableFuture<Skin> getSkinAsync(UUID uuid, MojangRequestScheduler.Priority priority) {
+        Skin cached = skinCache.getIfPresent(uuid);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        InFlightSkin load = new InFlightSkin(MOJANG_REQUESTS, priority);
+        InFlightSkin inFlight = inFlightSkins.putIfAbsent(uuid, load);
+        if (inFlight != null) {
+            coalescedSkinRequests.increment();
+            inFlight.join(priority);
+            return inFlight.getFuture();
+        }
+        long start = System.nanoTime();
+        Executor executor = getSkinExecutor();
+        executor.execute(() -> {
+            SkinDiskCache diskCache = skinDiskCache;
+            Skin skin = diskCache == null ? null : diskCache.get(uuid);
+            if (skin != null) {
+                completeSkinLoad(uuid, load, skin, null, start);
+                return;
+            }
+            // Continue on the skin executor rather than waiting for the response,
+            // so that no thread is blocked while the request is queued
+            load.submit(() -> MojangAPIUtil.getSkinData(uuid)).whenCompleteAsync((data, e) -> {
+                Skin fetched = null;
+                if (e == null) {
+                    fetched = toSkin(data);
+                    SkinDiskCache currentDiskCache = skinDiskCache;
+                    if (currentDiskCache != null) {
+                        currentDiskCache.put(uuid, fetched);
                     }
-                } else {
-                    new BukkitRunnable() {
-                        @Override
-                        public void run() {
-                            callBack.callBack(null, false, result.getException());
-                        }
-                    }.runTask(plugin);
                 }
+                completeSkinLoad(uuid, load, fetched, e, start);
+            }, executor);
+        });
+        return load.getFuture();
+    }
+
+    private void completeSkinLoad(UUID uuid, InFlightSkin load, Skin skin, Throwable e, long start) {
+        SKIN_LOAD_NANOS.add(System.nanoTime() - start);
+        if (e == null) {
+            SKIN_LOAD_SUCCESSES.increment();
+            skinCache.put(uuid, skin);
+        } else {
+            SKIN_LOAD_FAILURES.increment();
+        }
+        inFlightSkins.remove(uuid, load);
+        if (e == null) {
+            load.getFuture().complete(skin);
+        } else {
+            load.getFuture().completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Sets the executor used to load skins that aren't in memory, which might
+     * involve reading from disk and waiting for Mojang's servers. By default,
+     * Bukkit's asynchronous scheduler is used.
+     *
+     * @param executor the executor to use, or null to use the default
+     */
+    public void setSkinExecutor(Executor executor) {
+        this.skinExecutor = executor;
+    }
+
+    /**
+     * Gets an executor running tasks on the main thread in the next tick,
+     * for continuing with the futures returned by getSkinAsync.
+     *
+     * @return the main thread executor
+     */
+    public Executor getMainThreadExecutor() {
+        return task -> Bukkit.getScheduler().runTask(plugin, task);
+    }
+
+    private Executor getSkinExecutor() {
+        Executor executor = skinExecutor;
+        return executor == null ? task -> Bukkit.getScheduler().runTaskAsynchronously(plugin, task) : executor;
+    }
+
+    /**
+     * Gets the number of skin requests that were made while an identical request
+     * was already in progress, and therefore shared its result instead of
+     * making another request to Mojang's servers.
+     *
+     * @return the number of coalesced requests
+     */
+    public long getCoalescedSkinRequests() {
+        return coalescedSkinRequests.sum() + usernameBatcher.getCoalescedLookups();
+    }
+
+    /**
+     * Sets the prefetcher supplying the skins players will probably need.
+     * These skins are then fetched while the players are logging in, so that
+     * they are already cached once they have joined.
+     * <p>
+     * Prefetching has a lower priority than other skin requests.
+     *
+     * @param prefetcher the prefetcher to use, or null to not prefetch any skins
+     */
+    public void setSkinPrefetcher(SkinPrefetcher prefetcher) {
+        this.skinPrefetcher = prefetcher;
+    }
+
+    void handlePreLogin(UUID uuid, String name) {
+        SkinPrefetcher prefetcher = skinPrefetcher;
+        if (prefetcher == null) {
+            return;
+        }
+        for (UUID skinUUID : prefetcher.getSkinUUIDs(uuid, name)) {
+            getSkinAsync(skinUUID, MojangRequestScheduler.Priority.PREFETCH);
+        }
+        for (String username : prefetcher.getSkinUsernames(uuid, name)) {
+            getSkinAsync(username, MojangRequestScheduler.Priority.PREFETCH);
+        }
+    }
+
+    private void callBackOnMainThread(CompletableFuture<Skin> future, SkinCallBack callBack) {
+        BiConsumer<Skin, Throwable> action = (skin, e) -> {
+            if (e == null) {
+                callBack.callBack(skin, true, null);
+            } else {
+                callBack.callBack(null, false, asException(e));
             }
-        }.runTaskAsynchronously(this.plugin);
+        };
+        // Skins that are already cached are passed on right away
+        if (future.isDone() && Bukkit.isPrimaryThread()) {
+            future.whenComplete(action);
+        } else {
+            future.whenCompleteAsync(action, getMainThreadExecutor());
+        }
+    }
+
+    private static Exception asException(Throwable throwable) {
+        if (throwable instanceof CompletionException && throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        return throwable instanceof Exception ? (Exception) throwable : new ExecutionException(throwable);
     }
 
     /**
@@ -444,33 +993,144 @@ public class NameTagChanger {
      *
      * @param uuid     the uuid to get the skin of
      * @param callBack the call back to handle the result of the request
+     * @see #getSkinAsync(UUID)
      */
     public void getSkin(UUID uuid, SkinCallBack callBack) {
-        Map<UUID, Skin> asMap = SKIN_CACHE.asMap();
-        if (asMap.containsKey(uuid)) {
-            callBack.callBack(asMap.get(uuid), true, null);
-        } else {
-            new BukkitRunnable() {
-                @Override
-                public void run() {
-                    try {
-                        Skin skin = SKIN_CACHE.get(uuid);
-                        new BukkitRunnable() {
-                            @Override
-                            public void run() {
-                                callBack.callBack(skin, true, null);
-                            }
-                        }.runTask(plugin);
-                    } catch (ExecutionException e) {
-                        new BukkitRunnable() {
-                            @Override
-                            public void run() {
-                                callBack.callBack(null, false, e);
-                            }
-                        }.runTask(plugin);
-                    }
-                }
-            }.runTaskAsynchronously(this.plugin);
+        callBackOnMainThread(getSkinAsync(uuid), callBack);
+    }
+
+    private static LoadingCache<UUID, Skin> buildSkinCache(long maximumWeight) {
+        // Skins older than 5 minutes are still used while they are refreshed in the background,
+        // and are only dropped if they couldn't be refreshed for an hour.
+        return CacheBuilder.newBuilder().refreshAfterWrite(5, TimeUnit.MINUTES).expireAfterWrite(1, TimeUnit.HOURS)
+                .maximumWeight(maximumWeight).weigher(NameTagChanger::getSkinWeight).recordStats().build(SKIN_LOADER);
+    }
+
+    private static int getSkinWeight(UUID uuid, Skin skin) {
+        if (skin == Skin.EMPTY_SKIN) {
+            return 1;
+        }
+        return skin.getBase64().length() + (skin.hasSignedBase64() ? skin.getSignedBase64().length() : 0);
+    }
+
+    /**
+     * Sets the maximum weight of the skin cache, which is the total amount of characters
+     * of skin data it may hold. When it is exceeded, the least recently used skins are evicted.
+     * <p>
+     * The skins that are currently cached are kept, as long as they fit, but the
+     * statistics are reset. The kept skins are copied into a new cache, which
+     * can't know how old they are, so they are treated as if they were just loaded:
+     * they are refreshed up to 5 minutes later and expire up to an hour later than
+     * they otherwise would. Skins being loaded by getSkinAsync end up in the new
+     * cache, but background refreshes that are in progress are discarded, so those
+     * skins are refreshed again later. Because of this, it is best to set the
+     * maximum weight once, when enabling NameTagChanger.
+     *
+     * @param maximumWeight the maximum weight
+     * @see #DEFAULT_SKIN_CACHE_MAXIMUM_WEIGHT
+     */
+    public void setSkinCacheMaximumWeight(long maximumWeight) {
+        Validate.isTrue(maximumWeight > 0, "maximumWeight must be positive");
+        LoadingCache<UUID, Skin> newCache = buildSkinCache(maximumWeight);
+        newCache.putAll(skinCache.asMap());
+        skinCache = newCache;
+        SKIN_LOAD_SUCCESSES.reset();
+        SKIN_LOAD_FAILURES.reset();
+        SKIN_LOAD_NANOS.reset();
+    }
+
+    /**
+     * Gets the statistics of the skin cache, such as the hit rate,
+     * the average time it takes to load skins and the number of evictions.
+     *
+     * @return the skin cache statistics
+     */
+    public CacheStats getSkinCacheStats() {
+        return skinCache.stats().plus(new CacheStats(0, 0, SKIN_LOAD_SUCCESSES.sum(), SKIN_LOAD_FAILURES.sum(), SKIN_LOAD_NANOS.sum(), 0));
+    }
+
+    /**
+     * Gets the current weight of the skin cache, which is the total
+     * amount of characters of skin data it holds.
+     *
+     * @return the current weight
+     * @see #setSkinCacheMaximumWeight(long)
+     */
+    public long getSkinCacheWeight() {
+        long weight = 0;
+        for (Map.Entry<UUID, Skin> entry : skinCache.asMap().entrySet()) {
+            weight += getSkinWeight(entry.getKey(), entry.getValue());
+        }
+        return weight;
+    }
+
+    private static Skin toSkin(MojangAPIUtil.SkinData data) {
+        if (data == null || (data.getSkinURL() == null && data.getCapeURL() == null)) {
+            return Skin.EMPTY_SKIN;
+        }
+        return new Skin(data.getUUID(), data.getBase64(), data.getSignedBase64());
+    }
+
+    /**
+     * Gets the number of requests to Mojang's servers that are waiting to be made,
+     * either because of the rate limit or because they are waiting to be retried.
+     *
+     * @return the number of queued requests
+     */
+    public long getQueuedMojangRequests() {
+        return MOJANG_REQUESTS.getQueuedRequests();
+    }
+
+    /**
+     * Gets the number of times a request to Mojang's servers was
+     * retried after being rate limited or failing temporarily.
+     *
+     * @return the number of retries
+     */
+    public long getRetriedMojangRequests() {
+        return MOJANG_REQUESTS.getRetriedRequests();
+    }
+
+    /**
+     * Gets the average time it took to complete a request to Mojang's
+     * servers, including the time spent waiting in the queue.
+     *
+     * @return the average latency in milliseconds
+     */
+    public double getAverageMojangRequestMillis() {
+        return MOJANG_REQUESTS.getAverageLatencyMillis();
+    }
+
+    /**
+     * Enables storing fetched skins on disk, so that they can be looked up
+     * without contacting Mojang's servers again, even after a restart.
+     * <p>
+     * Skins found on disk are still cached in memory as usual. The file is
+     * only read once a skin is requested.
+     *
+     * @param file     the file to store the skins in
+     * @param ttl      how long skins are kept on disk
+     * @param unit     the time unit of ttl
+     * @param maxSkins the maximum amount of skins to keep on disk
+     */
+    public void enableSkinDiskCache(File file, long ttl, TimeUnit unit, int maxSkins) {
+        Validate.notNull(file, "file cannot be null");
+        Validate.notNull(unit, "unit cannot be null");
+        Validate.isTrue(ttl > 0, "ttl must be positive");
+        Validate.isTrue(maxSkins > 0, "maxSkins must be positive");
+        disableSkinDiskCache();
+        skinDiskCache = new SkinDiskCache(file, unit.toMillis(ttl), maxSkins);
+    }
+
+    /**
+     * Stops storing skins on disk. Skins already stored are kept in
+     * the file and will be used if the disk cache is enabled again.
+     */
+    public void disableSkinDiskCache() {
+        SkinDiskCache diskCache = skinDiskCache;
+        skinDiskCache = null;
+        if (diskCache != null) {
+            diskCache.close();
         }
     }
 
@@ -0,0 +1,43 @@
+package com.bringholm.nametagchanger;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * Keeps NameTagChanger's per-player state up to date as players join and leave.
+ * @author AlvinB
+ */
+class PlayerListener implements Listener {
+    private final NameTagChanger nameTagChanger;
+
+    PlayerListener(NameTagChanger nameTagChanger) {
+        this.nameTagChanger = nameTagChanger;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPreLogin(AsyncPlayerPreLoginEvent e) {
+        if (e.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            nameTagChanger.handlePreLogin(e.getUniqueId(), e.getName());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onJoin(PlayerJoinEvent e) {
+        nameTagChanger.handleJoin(e.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldChange(PlayerChangedWorldEvent e) {
+        nameTagChanger.handleWorldChange(e.getPlayer(), e.getFrom());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent e) {
+        nameTagChanger.handleQuit(e.getPlayer());
+    }
+}
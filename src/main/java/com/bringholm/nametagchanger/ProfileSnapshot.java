@@ -0,0 +1,87 @@
+package com.bringholm.nametagchanger;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * An immutable view of all changed profiles, together with an index from
+ * the original names of online players to their changed names.
+ * <p>
+ * Changes are made by creating a new snapshot, which is then published
+ * by NameTagChanger. This means that the packet listeners can read it from
+ * any thread without locking.
+ *
+ * @author AlvinB
+ */
+final class ProfileSnapshot {
+    static final ProfileSnapshot EMPTY = new ProfileSnapshot(ImmutableMap.of(), ImmutableMap.of());
+
+    private final ImmutableMap<UUID, GameProfileWrapper> profiles;
+    private final ImmutableMap<String, String> changedNames;
+
+    private ProfileSnapshot(ImmutableMap<UUID, GameProfileWrapper> profiles, ImmutableMap<String, String> changedNames) {
+        this.profiles = profiles;
+        this.changedNames = changedNames;
+    }
+
+    boolean isEmpty() {
+        return profiles.isEmpty();
+    }
+
+    boolean hasProfile(UUID uuid) {
+        return profiles.containsKey(uuid);
+    }
+
+    GameProfileWrapper getProfile(UUID uuid) {
+        return profiles.get(uuid);
+    }
+
+    ImmutableMap<UUID, GameProfileWrapper> getProfiles() {
+        return profiles;
+    }
+
+    boolean hasChangedNames() {
+        return !changedNames.isEmpty();
+    }
+
+    String getChangedName(String originalName) {
+        return changedNames.get(originalName);
+    }
+
+    ProfileSnapshot withProfile(UUID uuid, GameProfileWrapper profile) {
+        return new ProfileSnapshot(put(profiles, uuid, profile), changedNames);
+    }
+
+    ProfileSnapshot withoutProfile(UUID uuid) {
+        if (!profiles.containsKey(uuid)) {
+            return this;
+        }
+        return new ProfileSnapshot(remove(profiles, uuid), changedNames);
+    }
+
+    ProfileSnapshot withChangedName(String originalName, String changedName) {
+        return new ProfileSnapshot(profiles, put(changedNames, originalName, changedName));
+    }
+
+    ProfileSnapshot withoutChangedName(String originalName) {
+        if (!changedNames.containsKey(originalName)) {
+            return this;
+        }
+        return new ProfileSnapshot(profiles, remove(changedNames, originalName));
+    }
+
+    private static <K, V> ImmutableMap<K, V> put(ImmutableMap<K, V> map, K key, V value) {
+        Map<K, V> copy = Maps.newLinkedHashMap(map);
+        copy.put(key, value);
+        return ImmutableMap.copyOf(copy);
+    }
+
+    private static <K, V> ImmutableMap<K, V> remove(ImmutableMap<K, V> map, K key) {
+        Map<K, V> copy = Maps.newLinkedHashMap(map);
+        copy.remove(key);
+        return ImmutableMap.copyOf(copy);
+    }
+}
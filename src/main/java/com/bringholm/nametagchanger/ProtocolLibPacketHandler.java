@@ -7,11 +7,15 @@ import com.comphenix.protocol.events.PacketAdapter;
 import com.comphenix.protocol.events.PacketContainer;
 import com.comphenix.protocol.events.PacketEvent;
 import com.comphenix.protocol.wrappers.*;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
 import org.bukkit.Bukkit;
+import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
 import org.bukkit.plugin.Plugin;
 
 import java.lang.reflect.Field;
@@ -34,6 +38,9 @@ public class ProtocolLibPacketHandler extends PacketAdapter implements IPacketHa
     private static final int JOIN_SCOREBOARD_TEAM_MODE = 3;
     private static final int LEAVE_SCOREBOARD_TEAM_MODE = 4;
 
+    // Weak keys compare by identity, so a new profile instance always gets a freshly built wrapper.
+    private final Map<GameProfileWrapper, WrappedGameProfile> wrappedProfiles = new MapMaker().weakKeys().makeMap();
+
     ProtocolLibPacketHandler(Plugin plugin) {
         super(plugin, PacketType.Play.Server.PLAYER_INFO, PacketType.Play.Server.SCOREBOARD_TEAM);
         ProtocolLibrary.getProtocolManager().addPacketListener(this);
@@ -41,162 +48,148 @@ public class ProtocolLibPacketHandler extends PacketAdapter implements IPacketHa
 
     @Override
     public void onPacketSending(PacketEvent e) {
-        if (NameTagChanger.INSTANCE.sendingPackets) {
+        if (NameTagChanger.INSTANCE.isBypassed(e.getPacket().getHandle())) {
             return;
         }
         if (e.getPacketType() == PacketType.Play.Server.PLAYER_INFO) {
-            List<PlayerInfoData> list = Lists.newArrayList();
-            boolean modified = false;
-            for (PlayerInfoData infoData : e.getPacket().getPlayerInfoDataLists().read(0)) {
-                if (NameTagChanger.INSTANCE.gameProfiles.containsKey(infoData.getProfile().getUUID())) {
-                    UUID uuid = infoData.getProfile().getUUID();
+            // The client only reads the profile of ADD_PLAYER entries. UPDATE_DISPLAY_NAME entries without a display
+            // name make the client fall back to the profile name, so they need the player list name filled in.
+            // All other actions only use the UUID.
+            EnumWrappers.PlayerInfoAction action = e.getPacket().getPlayerInfoAction().read(0);
+            boolean addPlayer = action == EnumWrappers.PlayerInfoAction.ADD_PLAYER;
+            if (!addPlayer && action != EnumWrappers.PlayerInfoAction.UPDATE_DISPLAY_NAME) {
+                NameTagChanger.INSTANCE.incrementSkippedPlayerInfoPackets();
+                return;
+            }
+            ProfileSnapshot snapshot = NameTagChanger.INSTANCE.getSnapshot();
+            if (snapshot.isEmpty()) {
+                return;
+            }
+            List<PlayerInfoData> infoDataList = e.getPacket().getPlayerInfoDataLists().read(0);
+            // Only allocate the new list once an entry actually needs to be replaced.
+            List<PlayerInfoData> list = null;
+            for (int i = 0; i < infoDataList.size(); i++) {
+                PlayerInfoData infoData = infoDataList.get(i);
+                UUID uuid = infoData.getProfile().getUUID();
+                GameProfileWrapper newGameProfile = snapshot.getProfile(uuid);
+                if (newGameProfile != null && (addPlayer || infoData.getDisplayName() == null)) {
+                    if (list == null) {
+                        list = Lists.newArrayList(infoDataList.subList(0, i));
+                    }
                     Player player = Bukkit.getPlayer(uuid);
                     WrappedChatComponent displayName = infoData.getDisplayName() == null ? WrappedChatComponent.fromText(player == null ? infoData.getProfile().getName() : player.getPlayerListName()) : infoData.getDisplayName();
-                    WrappedGameProfile gameProfile = getProtocolLibProfileWrapper(NameTagChanger.INSTANCE.gameProfiles.get(uuid));
+                    WrappedGameProfile gameProfile = addPlayer ? getProtocolLibProfileWrapper(newGameProfile) : infoData.getProfile();
                     PlayerInfoData newInfoData = new PlayerInfoData(gameProfile, infoData.getLatency(), infoData.getGameMode(), displayName);
                     list.add(newInfoData);
-                    modified = true;
-                } else {
+                } else if (list != null) {
                     list.add(infoData);
                 }
             }
-            if (modified) {
+            if (list != null) {
                 e.getPacket().getPlayerInfoDataLists().write(0, list);
             }
         } else {
             int mode = e.getPacket().getIntegers().read(1);
             if (mode == CREATE_SCOREBOARD_TEAM_MODE || mode == LEAVE_SCOREBOARD_TEAM_MODE || mode == JOIN_SCOREBOARD_TEAM_MODE) {
                 @SuppressWarnings("unchecked") Collection<String> entriesToAdd = (Collection<String>) e.getPacket().getSpecificModifier(Collection.class).read(0);
-                Map<UUID, String> changedPlayerNames = NameTagChanger.INSTANCE.getChangedPlayers();
-                //noinspection Duplicates
-                for (String entry : entriesToAdd) {
-                    for (UUID uuid : changedPlayerNames.keySet()) {
-                        Player changedPlayer = Bukkit.getPlayer(uuid);
-                        if (changedPlayer != null && changedPlayer.getName().equals(entry)) {
-                            entriesToAdd.remove(entry);
-                            entriesToAdd.add(changedPlayerNames.get(uuid));
-                            break;
-                        }
-                    }
-                }
+                NameTagChanger.INSTANCE.renameScoreboardEntries(entriesToAdd);
             }
         }
     }
 
     @Override
-    public void sendTabListRemovePacket(Player playerToRemove, Player seer) {
+    public Object createTabListRemovePacket(Collection<Player> playersToRemove) {
         PacketContainer packet = ProtocolLibrary.getProtocolManager().createPacket(PacketType.Play.Server.PLAYER_INFO);
         packet.getPlayerInfoAction().write(0, EnumWrappers.PlayerInfoAction.REMOVE_PLAYER);
-        PlayerInfoData playerInfoData = new PlayerInfoData(WrappedGameProfile.fromPlayer(playerToRemove), 0, EnumWrappers.NativeGameMode.NOT_SET, null);
-        packet.getPlayerInfoDataLists().write(0, Collections.singletonList(playerInfoData));
-        try {
-            ProtocolLibrary.getProtocolManager().sendServerPacket(seer, packet);
-        } catch (InvocationTargetException e) {
-            logMessage(Level.SEVERE, "Failed to send tab list remove packet!", e);
+        List<PlayerInfoData> playerInfoDataList = Lists.newArrayListWithCapacity(playersToRemove.size());
+        for (Player playerToRemove : playersToRemove) {
+            playerInfoDataList.add(new PlayerInfoData(WrappedGameProfile.fromPlayer(playerToRemove), 0, EnumWrappers.NativeGameMode.NOT_SET, null));
         }
+        packet.getPlayerInfoDataLists().write(0, playerInfoDataList);
+        return packet;
     }
 
     @Override
-    public void sendTabListAddPacket(Player playerToAdd, GameProfileWrapper newProfile, Player seer) {
+    public Object createTabListAddPacket(Map<Player, GameProfileWrapper> playersToAdd) {
         PacketContainer packet = ProtocolLibrary.getProtocolManager().createPacket(PacketType.Play.Server.PLAYER_INFO);
-        int ping = (int) ReflectUtil.getFieldValue(ReflectUtil.invokeMethod(playerToAdd, GET_HANDLE).getOrThrow(), PING).getOrThrow();
         packet.getPlayerInfoAction().write(0, EnumWrappers.PlayerInfoAction.ADD_PLAYER);
-        PlayerInfoData playerInfoData = new PlayerInfoData(getProtocolLibProfileWrapper(newProfile), ping, EnumWrappers.NativeGameMode.fromBukkit(playerToAdd.getGameMode()), WrappedChatComponent.fromText(playerToAdd.getPlayerListName()));
-        packet.getPlayerInfoDataLists().write(0, Collections.singletonList(playerInfoData));
-        try {
-            ProtocolLibrary.getProtocolManager().sendServerPacket(seer, packet);
-        } catch (InvocationTargetException e) {
-            logMessage(Level.SEVERE, "Failed to send tab list add packet!", e);
+        List<PlayerInfoData> playerInfoDataList = Lists.newArrayListWithCapacity(playersToAdd.size());
+        for (Map.Entry<Player, GameProfileWrapper> entry : playersToAdd.entrySet()) {
+            Player playerToAdd = entry.getKey();
+            int ping = (int) ReflectUtil.getFieldValue(ReflectUtil.invokeMethod(playerToAdd, GET_HANDLE).getOrThrow(), PING).getOrThrow();
+            playerInfoDataList.add(new PlayerInfoData(getProtocolLibProfileWrapper(entry.getValue()), ping, EnumWrappers.NativeGameMode.fromBukkit(playerToAdd.getGameMode()), WrappedChatComponent.fromText(playerToAdd.getPlayerListName())));
         }
+        packet.getPlayerInfoDataLists().write(0, playerInfoDataList);
+        return packet;
     }
 
     @Override
-    public void sendEntityDestroyPacket(Player playerToDestroy, Player seer) {
+    public Object createEntityDestroyPacket(Collection<Player> playersToDestroy) {
         PacketContainer packet = ProtocolLibrary.getProtocolManager().createPacket(PacketType.Play.Server.ENTITY_DESTROY);
-        packet.getIntegerArrays().write(0, new int[] {playerToDestroy.getEntityId()});
-        try {
-            ProtocolLibrary.getProtocolManager().sendServerPacket(seer, packet);
-        } catch (InvocationTargetException e) {
-            logMessage(Level.SEVERE, "Failed to send entity destroy packet!", e);
+        int[] entityIds = new int[playersToDestroy.size()];
+        int i = 0;
+        for (Player playerToDestroy : playersToDestroy) {
+            entityIds[i++] = playerToDestroy.getEntityId();
         }
+        packet.getIntegerArrays().write(0, entityIds);
+        return packet;
     }
 
     @Override
-    public void sendNamedEntitySpawnPacket(Player playerToSpawn, Player seer) {
+    public Object createNamedEntitySpawnPacket(Player playerToSpawn) {
         PacketContainer packet = ProtocolLibrary.getProtocolManager().createPacket(PacketType.Play.Server.NAMED_ENTITY_SPAWN);
+        Location location = playerToSpawn.getLocation();
         packet.getIntegers().write(0, playerToSpawn.getEntityId());
         packet.getUUIDs().write(0, playerToSpawn.getUniqueId());
         if (ReflectUtil.isVersionHigherThan(1, 8, 8)) {
-            packet.getDoubles().write(0, playerToSpawn.getLocation().getX());
-            packet.getDoubles().write(1, playerToSpawn.getLocation().getY());
-            packet.getDoubles().write(2, playerToSpawn.getLocation().getZ());
+            packet.getDoubles().write(0, location.getX());
+            packet.getDoubles().write(1, location.getY());
+            packet.getDoubles().write(2, location.getZ());
         } else {
-            packet.getIntegers().write(0, (int) Math.floor(playerToSpawn.getLocation().getX() * 32D));
-            packet.getIntegers().write(1, (int) Math.floor(playerToSpawn.getLocation().getY() * 32D));
-            packet.getIntegers().write(2, (int) Math.floor(playerToSpawn.getLocation().getZ() * 32D));
+            packet.getIntegers().write(0, (int) Math.floor(location.getX() * 32D));
+            packet.getIntegers().write(1, (int) Math.floor(location.getY() * 32D));
+            packet.getIntegers().write(2, (int) Math.floor(location.getZ() * 32D));
         }
-        packet.getBytes().write(0, (byte) (playerToSpawn.getLocation().getYaw() * 256F / 360F));
-        packet.getBytes().write(1, (byte) (playerToSpawn.getLocation().getPitch() * 256F / 360F));
+        packet.getBytes().write(0, (byte) (location.getYaw() * 256F / 360F));
+        packet.getBytes().write(1, (byte) (location.getPitch() * 256F / 360F));
         packet.getDataWatcherModifier().write(0, WrappedDataWatcher.getEntityWatcher(playerToSpawn));
-        try {
-            ProtocolLibrary.getProtocolManager().sendServerPacket(seer, packet);
-        } catch (InvocationTargetException e) {
-            logMessage(Level.SEVERE, "Failed to send named entity spawn packet!", e);
-        }
+        return packet;
     }
 
     @Override
-    public void sendEntityEquipmentPacket(Player playerToSpawn, Player seer) {
+    public List<Object> createEntityEquipmentPackets(Player playerToSpawn) {
+        List<Object> packets = Lists.newArrayList();
         int entityID = playerToSpawn.getEntityId();
-        // ProtocolLib converts some ItemStacks with Material.AIR to null, causing exceptions
-        if (playerToSpawn.getInventory().getItemInMainHand() != null && playerToSpawn.getInventory().getItemInMainHand().getType() != Material.AIR) {
-            doEquipmentPacketSend(entityID, EnumWrappers.ItemSlot.MAINHAND, playerToSpawn.getInventory().getItemInMainHand(), seer);
-        }
-        if (playerToSpawn.getInventory().getItemInOffHand() != null && playerToSpawn.getInventory().getItemInOffHand().getType() != Material.AIR) {
-            doEquipmentPacketSend(entityID, EnumWrappers.ItemSlot.OFFHAND, playerToSpawn.getInventory().getItemInOffHand(), seer);
-        }
-        if (playerToSpawn.getInventory().getBoots() != null && playerToSpawn.getInventory().getBoots().getType() != Material.AIR) {
-            doEquipmentPacketSend(entityID, EnumWrappers.ItemSlot.FEET, playerToSpawn.getInventory().getBoots(), seer);
-        }
-        if (playerToSpawn.getInventory().getLeggings() != null && playerToSpawn.getInventory().getLeggings().getType() != Material.AIR) {
-            doEquipmentPacketSend(entityID, EnumWrappers.ItemSlot.LEGS, playerToSpawn.getInventory().getLeggings(), seer);
-        }
-        if (playerToSpawn.getInventory().getChestplate() != null && playerToSpawn.getInventory().getChestplate().getType() != Material.AIR) {
-            doEquipmentPacketSend(entityID, EnumWrappers.ItemSlot.CHEST, playerToSpawn.getInventory().getChestplate(), seer);
-        }
-        if (playerToSpawn.getInventory().getHelmet() != null && playerToSpawn.getInventory().getHelmet().getType() != Material.AIR) {
-            doEquipmentPacketSend(entityID, EnumWrappers.ItemSlot.HEAD, playerToSpawn.getInventory().getHelmet(), seer);
-        }
+        PlayerInventory inventory = playerToSpawn.getInventory();
+        addEquipmentPacket(packets, entityID, EnumWrappers.ItemSlot.MAINHAND, inventory.getItemInMainHand());
+        addEquipmentPacket(packets, entityID, EnumWrappers.ItemSlot.OFFHAND, inventory.getItemInOffHand());
+        addEquipmentPacket(packets, entityID, EnumWrappers.ItemSlot.FEET, inventory.getBoots());
+        addEquipmentPacket(packets, entityID, EnumWrappers.ItemSlot.LEGS, inventory.getLeggings());
+        addEquipmentPacket(packets, entityID, EnumWrappers.ItemSlot.CHEST, inventory.getChestplate());
+        addEquipmentPacket(packets, entityID, EnumWrappers.ItemSlot.HEAD, inventory.getHelmet());
+        return packets;
     }
 
-    private void doEquipmentPacketSend(int entityID, EnumWrappers.ItemSlot slot, ItemStack itemStack, Player recipient) {
+    private void addEquipmentPacket(List<Object> packets, int entityID, EnumWrappers.ItemSlot slot, ItemStack itemStack) {
+        // ProtocolLib converts some ItemStacks with Material.AIR to null, causing exceptions
+        if (itemStack == null || itemStack.getType() == Material.AIR) {
+            return;
+        }
         PacketContainer packet = ProtocolLibrary.getProtocolManager().createPacket(PacketType.Play.Server.ENTITY_EQUIPMENT);
         packet.getIntegers().write(0, entityID);
         packet.getItemSlots().write(0, slot);
         packet.getItemModifier().write(0, itemStack);
-        try {
-            ProtocolLibrary.getProtocolManager().sendServerPacket(recipient, packet);
-        } catch (InvocationTargetException e) {
-            logMessage(Level.SEVERE, "Failed to send equipment packet!", e);
-        }
+        packets.add(packet);
     }
 
     @Override
-    public void sendScoreboardRemovePacket(String playerToRemove, Player seer, String team) {
-        try {
-            ProtocolLibrary.getProtocolManager().sendServerPacket(seer, getScoreboardPacket(team, playerToRemove, LEAVE_SCOREBOARD_TEAM_MODE));
-        } catch (InvocationTargetException e) {
-            logMessage(Level.SEVERE, "Failed to send scoreboard remove packet!", e);
-        }
+    public Object createScoreboardRemovePacket(String playerToRemove, String team) {
+        return getScoreboardPacket(team, playerToRemove, LEAVE_SCOREBOARD_TEAM_MODE);
     }
 
     @Override
-    public void sendScoreboardAddPacket(String playerToAdd, Player seer, String team) {
-        try {
-            ProtocolLibrary.getProtocolManager().sendServerPacket(seer, getScoreboardPacket(team, playerToAdd, JOIN_SCOREBOARD_TEAM_MODE));
-        } catch (InvocationTargetException e) {
-            logMessage(Level.SEVERE, "Failed to send scoreboard add packet!", e);
-        }
+    public Object createScoreboardAddPacket(String playerToAdd, String team) {
+        return getScoreboardPacket(team, playerToAdd, JOIN_SCOREBOARD_TEAM_MODE);
     }
 
     @SuppressWarnings("unchecked")
@@ -208,26 +201,37 @@ public class ProtocolLibPacketHandler extends PacketAdapter implements IPacketHa
         return packet;
     }
 
+    @Override
+    public void sendPacket(Player seer, Object packet) {
+        PacketContainer packetContainer = (PacketContainer) packet;
+        NameTagChanger.INSTANCE.markBypassed(packetContainer.getHandle());
+        try {
+            ProtocolLibrary.getProtocolManager().sendServerPacket(seer, packetContainer);
+        } catch (InvocationTargetException e) {
+            logMessage(Level.SEVERE, "Failed to send " + packetContainer.getType() + " packet!", e);
+        }
+    }
+
+    @Override
+    public Collection<Player> getTrackingPlayers(Player player) {
+        return ProtocolLibrary.getProtocolManager().getEntityTrackers(player);
+    }
+
     @Override
     public GameProfileWrapper getDefaultPlayerProfile(Player player) {
         WrappedGameProfile wrappedGameProfile = WrappedGameProfile.fromPlayer(player);
-        GameProfileWrapper wrapper = new GameProfileWrapper(wrappedGameProfile.getUUID(), wrappedGameProfile.getName());
+        ImmutableSetMultimap.Builder<String, GameProfileWrapper.PropertyWrapper> properties = ImmutableSetMultimap.builder();
         for (Map.Entry<String, Collection<WrappedSignedProperty>> entry : wrappedGameProfile.getProperties().asMap().entrySet()) {
             for (WrappedSignedProperty wrappedSignedProperty : entry.getValue()) {
-                wrapper.getProperties().put(entry.getKey(), new GameProfileWrapper.PropertyWrapper(wrappedSignedProperty.getName(), wrappedSignedProperty.getValue(), wrappedSignedProperty.getSignature()));
+                properties.put(entry.getKey(), new GameProfileWrapper.PropertyWrapper(wrappedSignedProperty.getName(), wrappedSignedProperty.getValue(), wrappedSignedProperty.getSignature()));
             }
         }
-        return wrapper;
+        return new GameProfileWrapper(wrappedGameProfile.getUUID(), wrappedGameProfile.getName(), properties.build());
     }
 
-    private static WrappedGameProfile getProtocolLibProfileWrapper(GameProfileWrapper wrapper) {
-        WrappedGameProfile wrappedGameProfile = new WrappedGameProfile(wrapper.getUUID(), wrapper.getName());
-        for (Map.Entry<String, Collection<GameProfileWrapper.PropertyWrapper>> entry : wrapper.getProperties().asMap().entrySet()) {
-            for (GameProfileWrapper.PropertyWrapper propertyWrapper : entry.getValue()) {
-                wrappedGameProfile.getProperties().put(entry.getKey(), new WrappedSignedProperty(propertyWrapper.getName(), propertyWrapper.getValue(), propertyWrapper.getSignature()));
-            }
-        }
-        return wrappedGameProfile;
+    private WrappedGameProfile getProtocolLibProfileWrapper(GameProfileWrapper wrapper) {
+        // Changed profiles are never modified once published, so the wrapper can be built once per profile instance.
+        return wrappedProfiles.computeIfAbsent(wrapper, profile -> WrappedGameProfile.fromHandle(profile.getHandle()));
     }
 
     @Override
@@ -236,13 +240,6 @@ public class ProtocolLibPacketHandler extends PacketAdapter implements IPacketHa
     }
 
     private void logMessage(Level level, String message, Exception e) {
-        if (level == Level.SEVERE) {
-            System.err.println("[NameTagChanger] " + message);
-        } else {
-            NameTagChanger.INSTANCE.printMessage(message);
-        }
-        if (e != null) {
-            e.printStackTrace();
-        }
+        NameTagChanger.INSTANCE.logMessage(level, message, e);
     }
 }
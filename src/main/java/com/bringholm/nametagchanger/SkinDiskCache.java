@@ -0,0 +1,294 @@
+package com.bringholm.nametagchanger;
+
+import com.bringholm.nametagchanger.skin.Skin;
+import com.google.common.collect.Maps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+
+/**
+ * A second tier for the skin cache which keeps skins on disk, so that they
+ * don't have to be fetched from Mojang again after a restart.
+ * <p>
+ * Skins are appended to a single file, and only the position of each skin is kept
+ * in memory. The file is read the first time the cache is used. Storing a skin again
+ * appends a new record, and the file is compacted once most of it consists of records
+ * that are outdated, expired or evicted. Once the cache is full, the skins that were
+ * stored the longest time ago are evicted first.
+ *
+ * @author AlvinB
+ */
+class SkinDiskCache {
+    private static final int MAGIC = 0x4E544353;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MIN_DEAD_RECORDS_TO_COMPACT = 1024;
+    private static final byte FLAG_EMPTY = 1;
+    private static final byte FLAG_SIGNED = 2;
+
+    private final File file;
+    private final long ttlMillis;
+    private final int maxSkins;
+    private final LongSupplier clock;
+    // In the order the skins were stored, so the eldest entry is the first to be evicted
+    private final LinkedHashMap<UUID, Record> index = Maps.newLinkedHashMap();
+    private RandomAccessFile data;
+    private int deadRecords;
+    private boolean closed;
+
+    SkinDiskCache(File file, long ttlMillis, int maxSkins) {
+        this(file, ttlMillis, maxSkins, System::currentTimeMillis);
+    }
+
+    /**
+     * @param clock the source of the current time, in milliseconds
+     */
+    SkinDiskCache(File file, long ttlMillis, int maxSkins, LongSupplier clock) {
+        this.file = file;
+        this.ttlMillis = ttlMillis;
+        this.maxSkins = maxSkins;
+        this.clock = clock;
+    }
+
+    /**
+     * Gets a skin from disk.
+     *
+     * @param uuid the uuid of the skin
+     * @return the skin, or null if it isn't stored or has expired
+     */
+    synchronized Skin get(UUID uuid) {
+        if (!open()) {
+            return null;
+        }
+        Record record = index.get(uuid);
+        if (record == null) {
+            return null;
+        }
+        if (record.expiresAt <= clock.getAsLong()) {
+            index.remove(uuid);
+            deadRecords++;
+            return null;
+        }
+        try {
+            data.seek(record.offset);
+            return readSkin(data, uuid);
+        } catch (IOException e) {
+            NameTagChanger.INSTANCE.logMessage(Level.SEVERE, "Failed to read skin of " + uuid + " from " + file, e);
+            index.remove(uuid);
+            deadRecords++;
+            return null;
+        }
+    }
+
+    synchronized void put(UUID uuid, Skin skin) {
+        if (!open()) {
+            return;
+        }
+        try {
+            long offset = data.length();
+            long expiresAt = clock.getAsLong() + ttlMillis;
+            data.seek(offset);
+            data.write(encode(uuid, skin, expiresAt));
+            if (index.remove(uuid) != null) {
+                deadRecords++;
+            }
+            index.put(uuid, new Record(offset, expiresAt));
+            for (Iterator<UUID> iterator = index.keySet().iterator(); index.size() > maxSkins; ) {
+                iterator.next();
+                iterator.remove();
+                deadRecords++;
+            }
+        } catch (IOException e) {
+            NameTagChanger.INSTANCE.logMessage(Level.SEVERE, "Failed to write skin of " + uuid + " to " + file, e);
+            return;
+        }
+        if (deadRecords >= MIN_DEAD_RECORDS_TO_COMPACT && deadRecords > index.size()) {
+            try {
+                compact();
+            } catch (IOException e) {
+                // Don't try again on every put, only once as many records have become dead again
+                deadRecords = 0;
+                NameTagChanger.INSTANCE.logMessage(Level.SEVERE, "Failed to compact " + file, e);
+            }
+        }
+    }
+
+    synchronized void close() {
+        closed = true;
+        index.clear();
+        if (data != null) {
+            try {
+                data.close();
+            } catch (IOException e) {
+                NameTagChanger.INSTANCE.logMessage(Level.SEVERE, "Failed to close " + file, e);
+            }
+            data = null;
+        }
+    }
+
+    private boolean open() {
+        if (closed) {
+            return false;
+        }
+        if (data != null) {
+            return true;
+        }
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Failed to create directory " + parent);
+            }
+            data = new RandomAccessFile(file, "rw");
+            index.clear();
+            deadRecords = 0;
+            load();
+            return true;
+        } catch (IOException e) {
+            NameTagChanger.INSTANCE.logMessage(Level.SEVERE, "Failed to open " + file + ", skins will not be stored on disk", e);
+            close();
+            return false;
+        }
+    }
+
+    private void load() throws IOException {
+        if (data.length() < HEADER_SIZE || data.readInt() != MAGIC || data.readInt() != FORMAT_VERSION) {
+            // Either a new file or one we can't read, so start over
+            data.setLength(0);
+            data.writeInt(MAGIC);
+            data.writeInt(FORMAT_VERSION);
+            return;
+        }
+        long now = clock.getAsLong();
+        long offset = HEADER_SIZE;
+        try {
+            while (offset < data.length()) {
+                data.seek(offset);
+                long expiresAt = data.readLong();
+                UUID uuid = new UUID(data.readLong(), data.readLong());
+                byte flags = data.readByte();
+                if ((flags & FLAG_EMPTY) == 0) {
+                    data.readUTF();
+                    if ((flags & FLAG_SIGNED) != 0) {
+                        data.readUTF();
+                    }
+                }
+                if (index.remove(uuid) != null) {
+                    deadRecords++;
+                }
+                if (expiresAt > now) {
+                    index.put(uuid, new Record(offset, expiresAt));
+                } else {
+                    deadRecords++;
+                }
+                offset = data.getFilePointer();
+            }
+        } catch (IOException e) {
+            // The last record was only partially written or is corrupt, most likely because the
+            // server crashed. Everything before it is still valid, so only drop the rest.
+            data.setLength(offset);
+        }
+        for (Iterator<UUID> iterator = index.keySet().iterator(); index.size() > maxSkins; ) {
+            iterator.next();
+            iterator.remove();
+            deadRecords++;
+        }
+    }
+
+    private void compact() throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        long now = clock.getAsLong();
+        Map<UUID, Record> newIndex = Maps.newLinkedHashMap();
+        try (RandomAccessFile temp = new RandomAccessFile(tempFile, "rw")) {
+            temp.setLength(0);
+            temp.writeInt(MAGIC);
+            temp.writeInt(FORMAT_VERSION);
+            for (Map.Entry<UUID, Record> entry : index.entrySet()) {
+                if (entry.getValue().expiresAt <= now) {
+                    continue;
+                }
+                Skin skin;
+                try {
+                    data.seek(entry.getValue().offset);
+                    skin = readSkin(data, entry.getKey());
+                } catch (IOException e) {
+                    // Leave out records that can't be read, rather than failing the whole compaction
+                    NameTagChanger.INSTANCE.logMessage(Level.SEVERE, "Failed to read skin of " + entry.getKey() + " from " + file + ", dropping it", e);
+                    continue;
+                }
+                newIndex.put(entry.getKey(), new Record(temp.getFilePointer(), entry.getValue().expiresAt));
+                temp.write(encode(entry.getKey(), skin, entry.getValue().expiresAt));
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile.toPath());
+            throw e;
+        }
+        data.close();
+        data = null;
+        boolean moved = false;
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } finally {
+            // If the move failed, the original file and index are still valid
+            data = new RandomAccessFile(file, "rw");
+            if (moved) {
+                index.clear();
+                index.putAll(newIndex);
+                deadRecords = 0;
+            } else {
+                Files.deleteIfExists(tempFile.toPath());
+            }
+        }
+    }
+
+    private static Skin readSkin(RandomAccessFile data, UUID uuid) throws IOException {
+        // Skip the expiry and uuid, which are already in the index
+        data.skipBytes(24);
+        byte flags = data.readByte();
+        if ((flags & FLAG_EMPTY) != 0) {
+            return Skin.EMPTY_SKIN;
+        }
+        String base64 = data.readUTF();
+        String signedBase64 = (flags & FLAG_SIGNED) != 0 ? data.readUTF() : null;
+        return new Skin(uuid, base64, signedBase64);
+    }
+
+    private static byte[] encode(UUID uuid, Skin skin, long expiresAt) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(expiresAt);
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+        if (skin == Skin.EMPTY_SKIN) {
+            out.writeByte(FLAG_EMPTY);
+        } else {
+            out.writeByte(skin.hasSignedBase64() ? FLAG_SIGNED : 0);
+            out.writeUTF(skin.getBase64());
+            if (skin.hasSignedBase64()) {
+                out.writeUTF(skin.getSignedBase64());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static class Record {
+        private final long offset;
+        private final long expiresAt;
+
+        private Record(long offset, long expiresAt) {
+            this.offset = offset;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
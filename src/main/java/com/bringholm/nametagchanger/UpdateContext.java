@@ -0,0 +1,146 @@
+package com.bringholm.nametagchanger;
+
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.collect.Table;
+import org.bukkit.entity.Player;
+import org.bukkit.scoreboard.Scoreboard;
+import org.bukkit.scoreboard.Team;
+
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Sends the packets needed to update players to individual seers.
+ * <p>
+ * Packets only depend on the players they contain, so each one is built the
+ * first time it is needed and then sent as-is to every other seer needing the
+ * same packet. A context reflects the profiles at the time it was created, and
+ * should therefore not be kept around for longer than a tick.
+ *
+ * @author AlvinB
+ */
+class UpdateContext {
+    private final IPacketHandler packetHandler;
+    private final ProfileSnapshot snapshot;
+    private final WorldIndex worldIndex;
+    private final Function<Player, GameProfileWrapper> defaultProfiles;
+
+    private final Map<Player, GameProfileWrapper> newProfiles = Maps.newHashMap();
+    private final Map<Player, Set<Player>> trackingPlayers = Maps.newHashMap();
+    private final Map<Set<Player>, Object> tabListRemovePackets = Maps.newHashMap();
+    private final Map<Set<Player>, Object> tabListAddPackets = Maps.newHashMap();
+    private final Map<Set<Player>, Object> entityDestroyPackets = Maps.newHashMap();
+    private final Map<Player, Object> namedEntitySpawnPackets = Maps.newHashMap();
+    private final Map<Player, List<Object>> entityEquipmentPackets = Maps.newHashMap();
+    // Most servers only have a few scoreboards shared by everyone, so teams are only looked up once per scoreboard
+    private final Map<Scoreboard, Map<String, Team>> entryTeams = new IdentityHashMap<>();
+    private final Table<String, String, Object> scoreboardRemovePackets = HashBasedTable.create();
+    private final Table<String, String, Object> scoreboardAddPackets = HashBasedTable.create();
+
+    UpdateContext(IPacketHandler packetHandler, ProfileSnapshot snapshot, WorldIndex worldIndex, Function<Player, GameProfileWrapper> defaultProfiles) {
+        this.packetHandler = packetHandler;
+        this.snapshot = snapshot;
+        this.worldIndex = worldIndex;
+        this.defaultProfiles = defaultProfiles;
+    }
+
+    /**
+     * Sends the packets updating the specified players to a seer.
+     *
+     * @param seer    the player to send the packets to
+     * @param players the players to update, mapped to the name other players saw before
+     *                the update, or null if their scoreboard team entries don't need updating
+     * @param inWorld whether the seer is in the same world as any of the players, otherwise
+     *                it can't have any of them spawned and only their tab list entries are updated
+     * @return the number of packets sent
+     */
+    int sendTo(Player seer, Map<Player, String> players, boolean inWorld) {
+        Set<Player> playersToAdd = Sets.newLinkedHashSet();
+        Set<Player> playersToRespawn = Sets.newLinkedHashSet();
+        int packetsSent = 0;
+        for (Player player : players.keySet()) {
+            if (seer.equals(player)) {
+                continue;
+            }
+            if (seer.canSee(player)) {
+                playersToAdd.add(player);
+                if (inWorld && isTracking(seer, player)) {
+                    playersToRespawn.add(player);
+                }
+            }
+        }
+        if (!playersToAdd.isEmpty()) {
+            packetHandler.sendPacket(seer, tabListRemovePackets.computeIfAbsent(playersToAdd, packetHandler::createTabListRemovePacket));
+            packetHandler.sendPacket(seer, tabListAddPackets.computeIfAbsent(playersToAdd, p -> packetHandler.createTabListAddPacket(Maps.toMap(p, this::getNewProfile))));
+            packetsSent += 2;
+        }
+        if (!playersToRespawn.isEmpty()) {
+            packetHandler.sendPacket(seer, entityDestroyPackets.computeIfAbsent(playersToRespawn, packetHandler::createEntityDestroyPacket));
+            packetsSent++;
+            for (Player player : playersToRespawn) {
+                packetHandler.sendPacket(seer, namedEntitySpawnPackets.computeIfAbsent(player, packetHandler::createNamedEntitySpawnPacket));
+                packetsSent++;
+                for (Object packet : entityEquipmentPackets.computeIfAbsent(player, packetHandler::createEntityEquipmentPackets)) {
+                    packetHandler.sendPacket(seer, packet);
+                    packetsSent++;
+                }
+            }
+        }
+        for (Map.Entry<Player, String> entry : players.entrySet()) {
+            String oldName = entry.getValue();
+            String newName = getNewProfile(entry.getKey()).getName();
+            if (oldName == null || oldName.equals(newName)) {
+                continue;
+            }
+            // The player we want to rename is in a scoreboard team.
+            Team team = getEntryTeam(seer.getScoreboard(), entry.getKey().getName());
+            if (team != null) {
+                packetHandler.sendPacket(seer, getScoreboardPacket(scoreboardRemovePackets, team.getName(), oldName, false));
+                packetHandler.sendPacket(seer, getScoreboardPacket(scoreboardAddPackets, team.getName(), newName, true));
+                packetsSent += 2;
+            }
+        }
+        return packetsSent;
+    }
+
+    /**
+     * Checks whether a seer currently has the entity of a player spawned. If this
+     * cannot be determined, all players in the same world are assumed to have it spawned.
+     */
+    boolean isTracking(Player seer, Player player) {
+        return trackingPlayers.computeIfAbsent(player, p -> {
+            Collection<Player> trackers = packetHandler.getTrackingPlayers(p);
+            return trackers == null ? worldIndex.getPlayers(p.getWorld()) : Sets.newHashSet(trackers);
+        }).contains(seer);
+    }
+
+    GameProfileWrapper getNewProfile(Player player) {
+        return newProfiles.computeIfAbsent(player, p -> {
+            GameProfileWrapper newProfile = snapshot.getProfile(p.getUniqueId());
+            return newProfile == null ? defaultProfiles.apply(p) : newProfile;
+        });
+    }
+
+    private Team getEntryTeam(Scoreboard scoreboard, String entry) {
+        Map<String, Team> teams = entryTeams.computeIfAbsent(scoreboard, s -> Maps.newHashMap());
+        if (!teams.containsKey(entry)) {
+            teams.put(entry, scoreboard.getEntryTeam(entry));
+        }
+        return teams.get(entry);
+    }
+
+    private Object getScoreboardPacket(Table<String, String, Object> packets, String team, String entry, boolean add) {
+        Object packet = packets.get(team, entry);
+        if (packet == null) {
+            packet = add ? packetHandler.createScoreboardAddPacket(entry, team) : packetHandler.createScoreboardRemovePacket(entry, team);
+            packets.put(team, entry, packet);
+        }
+        return packet;
+    }
+}
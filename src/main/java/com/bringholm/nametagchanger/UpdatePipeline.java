@@ -0,0 +1,181 @@
+package com.bringholm.nametagchanger;
+
+import com.google.common.collect.Maps;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues the updates each player needs to be sent, and sends them over
+ * several ticks within a per-tick budget.
+ * <p>
+ * Updates are queued per seer and only record which players need updating, so
+ * queueing another update of the same player replaces the pending one. The
+ * packets are built from the profiles at the time they are sent, which means
+ * every seer ends up seeing the latest state no matter how many updates were made
+ * in between.
+ * <p>
+ * Seers are ordered by priority when their updates are queued, so each tick
+ * only has to take seers from the front of the queue until the budget is used up.
+ *
+ * @author AlvinB
+ */
+class UpdatePipeline {
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final NameTagChanger nameTagChanger;
+    private final Plugin plugin;
+    private final Map<UUID, PendingSeer> pending = Maps.newHashMap();
+    private final TreeSet<PendingSeer> queue = new TreeSet<>(Comparator.<PendingSeer>comparingDouble(seer -> seer.priority).thenComparingLong(seer -> seer.sequence));
+    private long sequence;
+    private long maxNanosPerTick;
+    private int maxPacketsPerTick;
+    private BukkitTask task;
+    private long lastTick;
+    private long lastTickDuration = TICK_NANOS;
+
+    UpdatePipeline(NameTagChanger nameTagChanger, Plugin plugin) {
+        this.nameTagChanger = nameTagChanger;
+        this.plugin = plugin;
+    }
+
+    void setBudget(long maxNanosPerTick, int maxPacketsPerTick) {
+        this.maxNanosPerTick = maxNanosPerTick;
+        this.maxPacketsPerTick = maxPacketsPerTick;
+    }
+
+    void enqueue(Map<Player, String> players) {
+        Set<Player> worldSeers = nameTagChanger.getWorldSeers(players.keySet());
+        for (Player seer : Bukkit.getOnlinePlayers()) {
+            boolean inWorld = worldSeers.contains(seer);
+            double priority = getPriority(seer, players, inWorld);
+            PendingSeer pendingSeer = pending.get(seer.getUniqueId());
+            if (pendingSeer == null) {
+                pendingSeer = new PendingSeer(seer.getUniqueId(), sequence++, priority);
+                pending.put(seer.getUniqueId(), pendingSeer);
+            } else if (priority < pendingSeer.priority) {
+                // The seer has to be removed before its position in the queue changes
+                queue.remove(pendingSeer);
+                pendingSeer.priority = priority;
+            }
+            for (Map.Entry<Player, String> entry : players.entrySet()) {
+                // Keep the name from the first pending update, as that is the one the seer last saw
+                if (pendingSeer.players.get(entry.getKey().getUniqueId()) == null) {
+                    pendingSeer.players.put(entry.getKey().getUniqueId(), entry.getValue());
+                }
+            }
+            pendingSeer.inWorld |= inWorld;
+            queue.add(pendingSeer);
+        }
+        if (task == null && !pending.isEmpty()) {
+            lastTick = System.nanoTime();
+            lastTickDuration = TICK_NANOS;
+            task = new BukkitRunnable() {
+                @Override
+                public void run() {
+                    tick();
+                }
+            }.runTaskTimer(plugin, 1, 1);
+        }
+    }
+
+    int getQueuedSeers() {
+        return pending.size();
+    }
+
+    /**
+     * Sends all pending updates, ignoring the budget.
+     */
+    void flush() {
+        send(Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        lastTickDuration = now - lastTick;
+        lastTick = now;
+        // The time between ticks only exceeds 50 ms when the server can't keep up,
+        // in which case we scale down the budget to not make it worse.
+        double load = Math.min(1, (double) TICK_NANOS / Math.max(1, lastTickDuration));
+        long maxNanos = maxNanosPerTick == 0 ? Long.MAX_VALUE : Math.max(1, (long) (maxNanosPerTick * load));
+        int maxPackets = maxPacketsPerTick == 0 ? Integer.MAX_VALUE : Math.max(1, (int) (maxPacketsPerTick * load));
+        send(maxNanos, maxPackets);
+    }
+
+    private void send(long maxNanos, int maxPackets) {
+        long start = System.nanoTime();
+        UpdateContext context = nameTagChanger.createUpdateContext();
+        int packetsSent = 0;
+        boolean sentAny = false;
+        while (!queue.isEmpty()) {
+            // Always make some progress, even if a single seer exceeds the budget
+            if (sentAny && (packetsSent >= maxPackets || System.nanoTime() - start >= maxNanos)) {
+                break;
+            }
+            PendingSeer pendingSeer = queue.pollFirst();
+            pending.remove(pendingSeer.seer);
+            Player seer = Bukkit.getPlayer(pendingSeer.seer);
+            if (seer == null) {
+                // Players who log in again get sent the current state by the server
+                continue;
+            }
+            Map<Player, String> players = Maps.newLinkedHashMap();
+            for (Map.Entry<UUID, String> update : pendingSeer.players.entrySet()) {
+                Player player = Bukkit.getPlayer(update.getKey());
+                if (player != null) {
+                    players.put(player, update.getValue());
+                }
+            }
+            packetsSent += context.sendTo(seer, players, pendingSeer.inWorld);
+            sentAny = true;
+        }
+        if (pending.isEmpty() && task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    /**
+     * Lower values are sent first. Seers in the same world as one of the players come
+     * first, closest first, followed by those only seeing them in the tab list and
+     * then those not seeing them at all.
+     */
+    private static double getPriority(Player seer, Map<Player, String> players, boolean inWorld) {
+        double priority = Double.MAX_VALUE;
+        for (Player player : players.keySet()) {
+            if (seer.equals(player) || !seer.canSee(player)) {
+                continue;
+            }
+            if (inWorld && seer.getWorld().equals(player.getWorld())) {
+                priority = Math.min(priority, seer.getLocation().distanceSquared(player.getLocation()));
+            } else {
+                priority = Math.min(priority, Double.MAX_VALUE / 2);
+            }
+        }
+        return priority;
+    }
+
+    private static class PendingSeer {
+        private final UUID seer;
+        private final long sequence;
+        // player to update -> name the seer saw before the update
+        private final Map<UUID, String> players = Maps.newLinkedHashMap();
+        private double priority;
+        private boolean inWorld;
+
+        private PendingSeer(UUID seer, long sequence, double priority) {
+            this.seer = seer;
+            this.sequence = sequence;
+            this.priority = priority;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.bringholm.nametagchanger;
+
+import com.bringholm.mojangapiutil.v1_2.MojangAPIUtil;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Collects username to UUID lookups made within the same tick, and looks them
+ * up using as few requests to Mojang's bulk endpoint as possible.
+ * <p>
+ * Results are cached by lower case username. Usernames no player has and lookups
+ * that failed are cached as well, but for a shorter time, so that repeatedly
+ * looking them up doesn't reach Mojang every time.
+ *
+ * @author AlvinB
+ */
+class UsernameBatcher {
+    // The most usernames Mojang accepts in a single request
+    static final int MAX_NAMES_PER_REQUEST = 10;
+    private static final int MAX_CACHED_NAMES = 10000;
+    // Mojang rejects the whole request if any of its usernames doesn't look like this
+    private static final Pattern VALID_USERNAME = Pattern.compile("[A-Za-z0-9_]{1,16}");
+
+    private final Cache<String, UUID> knownNames = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_NAMES).expireAfterWrite(30, TimeUnit.MINUTES).build();
+    private final Cache<String, Boolean> unknownNames = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_NAMES).expireAfterWrite(1, TimeUnit.MINUTES).build();
+    private final Cache<String, Exception> failedNames = CacheBuilder.newBuilder().maximumSize(MAX_CACHED_NAMES).expireAfterWrite(10, TimeUnit.SECONDS).build();
+
+    private final NameTagChanger nameTagChanger;
+    private final MojangRequestScheduler scheduler;
+    // lower case username -> pending lookup
+    private Map<String, CompletableFuture<UUID>> pending = Maps.newLinkedHashMap();
+    // pending usernames someone is waiting for, rather than just prefetching
+    private Set<String> pendingInteractive = Sets.newHashSet();
+    // lower case username -> lookup currently being requested from Mojang
+    private final Map<String, CompletableFuture<UUID>> inFlight = Maps.newHashMap();
+    // lower case username -> request to Mojang it is being looked up by
+    private final Map<String, CompletableFuture<?>> inFlightRequests = Maps.newHashMap();
+    // in-flight usernames someone is waiting for
+    private final Set<String> inFlightInteractive = Sets.newHashSet();
+    private final LongAdder coalescedLookups = new LongAdder();
+
+    UsernameBatcher(NameTagChanger nameTagChanger, MojangRequestScheduler scheduler) {
+        this.nameTagChanger = nameTagChanger;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Looks up the UUID of a username. The lookup is made asynchronously
+     * together with all other lookups queued within the same tick. Lookups of
+     * a username that is already being looked up share the same request.
+     * Usernames no player could have are answered right away.
+     *
+     * @param username the username to look up
+     * @param priority the priority of the request to Mojang's servers
+     * @return a future completed with the UUID, or null if no player has the username
+     */
+    synchronized CompletableFuture<UUID> lookup(String username, MojangRequestScheduler.Priority priority) {
+        if (!VALID_USERNAME.matcher(username).matches()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        String name = username.toLowerCase(Locale.ROOT);
+        UUID uuid = knownNames.getIfPresent(name);
+        if (uuid != null) {
+            return CompletableFuture.completedFuture(uuid);
+        }
+        if (unknownNames.getIfPresent(name) != null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Exception failure = failedNames.getIfPresent(name);
+        if (failure != null) {
+            CompletableFuture<UUID> failed = new CompletableFuture<>();
+            failed.completeExceptionally(failure);
+            return failed;
+        }
+        CompletableFuture<UUID> future = pending.get(name);
+        if (future == null) {
+            future = inFlight.get(name);
+            if (future != null && priority == MojangRequestScheduler.Priority.INTERACTIVE && inFlightInteractive.add(name)) {
+                scheduler.promote(inFlightRequests.get(name));
+            }
+        } else if (priority == MojangRequestScheduler.Priority.INTERACTIVE) {
+            pendingInteractive.add(name);
+        }
+        if (future != null) {
+            coalescedLookups.increment();
+            return future;
+        }
+        if (priority == MojangRequestScheduler.Priority.INTERACTIVE) {
+            pendingInteractive.add(name);
+        }
+        if (pending.isEmpty()) {
+            new BukkitRunnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }.runTaskLaterAsynchronously(nameTagChanger.getPlugin(), 1);
+        }
+        future = new CompletableFuture<>();
+        pending.put(name, future);
+        return future;
+    }
+
+    long getCoalescedLookups() {
+        return coalescedLookups.sum();
+    }
+
+    private synchronized void flush() {
+        Map<String, CompletableFuture<UUID>> lookups = pending;
+        Set<String> interactive = pendingInteractive;
+        pending = Maps.newLinkedHashMap();
+        pendingInteractive = Sets.newHashSet();
+        inFlight.putAll(lookups);
+        // Put the interactive lookups first, so that as few requests as possible have to be interactive
+        List<String> sortedNames = Lists.newArrayList(lookups.keySet());
+        sortedNames.sort(Comparator.comparing(name -> !interactive.contains(name)));
+        inFlightInteractive.addAll(interactive);
+        for (List<String> names : Lists.partition(sortedNames, MAX_NAMES_PER_REQUEST)) {
+            request(names, lookups);
+        }
+    }
+
+    // Submitting only queues the request, so it is done while holding the lock. This way,
+    // lookups joining an in-flight lookup always find the request to promote.
+    private synchronized void request(List<String> names, Map<String, CompletableFuture<UUID>> lookups) {
+        boolean interactive = names.stream().anyMatch(inFlightInteractive::contains);
+        MojangRequestScheduler.Priority priority = interactive ? MojangRequestScheduler.Priority.INTERACTIVE : MojangRequestScheduler.Priority.PREFETCH;
+        CompletableFuture<Map<String, MojangAPIUtil.Profile>> request = scheduler.submit(priority, () -> MojangAPIUtil.getUUID(names));
+        for (String name : names) {
+            inFlightRequests.put(name, request);
+        }
+        request.whenComplete((profiles, e) -> {
+            if (e != null) {
+                Exception exception = e instanceof Exception ? (Exception) e : new ExecutionException(e);
+                int statusCode = MojangRequestScheduler.getStatusCode(exception);
+                if (names.size() > 1 && statusCode >= 400 && statusCode < 500) {
+                    // One of the usernames made Mojang reject the request, so look them up one
+                    // by one. This way, only the lookup of that username fails.
+                    for (String name : names) {
+                        request(Collections.singletonList(name), lookups);
+                    }
+                    return;
+                }
+                for (String name : names) {
+                    failedNames.put(name, exception);
+                    remove(name, lookups.get(name)).completeExceptionally(exception);
+                }
+                return;
+            }
+            Map<String, UUID> uuids = Maps.newHashMap();
+            if (profiles != null) {
+                for (Map.Entry<String, MojangAPIUtil.Profile> entry : profiles.entrySet()) {
+                    uuids.put(entry.getKey().toLowerCase(Locale.ROOT), entry.getValue().getUUID());
+                }
+            }
+            for (String name : names) {
+                UUID uuid = uuids.get(name);
+                if (uuid == null) {
+                    unknownNames.put(name, true);
+                } else {
+                    knownNames.put(name, uuid);
+                }
+                remove(name, lookups.get(name)).complete(uuid);
+            }
+        });
+    }
+
+    private synchronized CompletableFuture<UUID> remove(String name, CompletableFuture<UUID> future) {
+        if (inFlight.remove(name, future)) {
+            inFlightRequests.remove(name);
+            inFlightInteractive.remove(name);
+        }
+        return future;
+    }
+}
@@ -0,0 +1,45 @@
+package com.bringholm.nametagchanger;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Keeps track of which online players are in which world, so that
+ * updates don't have to check every online player's world.
+ * Only accessed from the main thread.
+ *
+ * @author AlvinB
+ */
+class WorldIndex {
+    private final Map<UUID, Set<Player>> players = Maps.newHashMap();
+
+    void add(Player player) {
+        players.computeIfAbsent(player.getWorld().getUID(), uuid -> Sets.newHashSet()).add(player);
+    }
+
+    void remove(Player player, World world) {
+        Set<Player> worldPlayers = players.get(world.getUID());
+        if (worldPlayers != null) {
+            worldPlayers.remove(player);
+            if (worldPlayers.isEmpty()) {
+                players.remove(world.getUID());
+            }
+        }
+    }
+
+    Set<Player> getPlayers(World world) {
+        Set<Player> worldPlayers = players.get(world.getUID());
+        return worldPlayers == null ? Collections.emptySet() : Collections.unmodifiableSet(worldPlayers);
+    }
+
+    void clear() {
+        players.clear();
+    }
+}
@@ -41,8 +41,8 @@ public class Skin implements ConfigurationSerializable {
         Validate.notNull(uuid, "uuid cannot be null");
         Validate.notNull(base64, "base64 cannot be null");
         this.uuid = uuid;
-        this.base64 = base64;
-        this.signedBase64 = signedBase64;
+        this.base64 = TextureInterner.intern(base64);
+        this.signedBase64 = TextureInterner.intern(signedBase64);
     }
 
     private Skin() {}
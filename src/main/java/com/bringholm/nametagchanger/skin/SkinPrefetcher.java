@@ -0,0 +1,33 @@
+package com.bringholm.nametagchanger.skin;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.UUID;
+
+/**
+ * Supplies the skins a player will probably need, so that they can be
+ * fetched while the player is still logging in.
+ * <p>
+ * Both methods are called asynchronously, before the player has joined.
+ *
+ * @author AlvinB
+ */
+public interface SkinPrefetcher {
+    /**
+     * @param uuid the uuid of the player logging in
+     * @param name the name of the player logging in
+     * @return the uuids of the skins to prefetch
+     */
+    default Collection<UUID> getSkinUUIDs(UUID uuid, String name) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @param uuid the uuid of the player logging in
+     * @param name the name of the player logging in
+     * @return the usernames of the skins to prefetch
+     */
+    default Collection<String> getSkinUsernames(UUID uuid, String name) {
+        return Collections.emptyList();
+    }
+}
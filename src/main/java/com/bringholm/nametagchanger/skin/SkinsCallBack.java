@@ -0,0 +1,11 @@
+package com.bringholm.nametagchanger.skin;
+
+import java.util.Map;
+
+public interface SkinsCallBack {
+    /**
+     * @param skins      the skins that were fetched, by the username they were requested with
+     * @param exceptions the errors that occurred, by the username they occurred for
+     */
+    void callBack(Map<String, Skin> skins, Map<String, Exception> exceptions);
+}
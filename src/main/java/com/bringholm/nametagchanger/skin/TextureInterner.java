@@ -0,0 +1,30 @@
+package com.bringholm.nametagchanger.skin;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/**
+ * Makes identical texture data share a single String instance.
+ * <p>
+ * Texture values and signatures are a few hundred characters each and are often
+ * shared by many players at once, such as when everyone in a minigame wears the
+ * same disguise. Instances are only held weakly, so textures no longer in use
+ * are still garbage collected.
+ *
+ * @author AlvinB
+ */
+final class TextureInterner {
+    private static final Interner<String> TEXTURES = Interners.newWeakInterner();
+
+    private TextureInterner() {}
+
+    /**
+     * Gets the canonical instance of some texture data.
+     *
+     * @param texture the texture value or signature
+     * @return the canonical instance, or null if texture is null
+     */
+    static String intern(String texture) {
+        return texture == null ? null : TEXTURES.intern(texture);
+    }
+}
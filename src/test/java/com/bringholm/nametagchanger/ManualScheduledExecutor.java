@@ -0,0 +1,164 @@
+package com.bringholm.nametagchanger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A ScheduledExecutorService running its tasks on the calling thread when
+ * its clock is advanced, so that tests don't depend on real time passing.
+ */
+class ManualScheduledExecutor extends AbstractExecutorService implements ScheduledExecutorService {
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private long now;
+    private long sequence;
+    private boolean shutdown;
+
+    long nanoTime() {
+        return now;
+    }
+
+    /**
+     * Runs all tasks which are due now, including tasks they schedule without a delay.
+     */
+    void runPending() {
+        advance(0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Moves the clock forward, running tasks in the order they become due.
+     */
+    void advance(long time, TimeUnit unit) {
+        long target = now + unit.toNanos(time);
+        while (!tasks.isEmpty() && tasks.peek().runAt <= target) {
+            Task task = tasks.poll();
+            now = Math.max(now, task.runAt);
+            task.run();
+        }
+        now = target;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        Task task = new Task(command, now + unit.toNanos(delay), sequence++);
+        tasks.add(task);
+        return task;
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> remaining = new ArrayList<>(tasks);
+        tasks.clear();
+        return remaining;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && tasks.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return isTerminated();
+    }
+
+    private class Task implements ScheduledFuture<Void>, Runnable {
+        private final Runnable command;
+        private final long runAt;
+        private final long sequence;
+        private boolean cancelled;
+        private boolean done;
+
+        private Task(Runnable command, long runAt, long sequence) {
+            this.command = command;
+            this.runAt = runAt;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if (!cancelled) {
+                done = true;
+                command.run();
+            }
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(runAt - now, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Task task = (Task) other;
+            int compare = Long.compare(runAt, task.runAt);
+            return compare != 0 ? compare : Long.compare(sequence, task.sequence);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (done) {
+                return false;
+            }
+            cancelled = true;
+            return tasks.remove(this);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done || cancelled;
+        }
+
+        @Override
+        public Void get() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.bringholm.nametagchanger;
+
+import com.bringholm.mojangapiutil.v1_2.MojangAPIUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MojangRequestSchedulerTest {
+    private ManualScheduledExecutor executor;
+
+    @Before
+    public void setUp() {
+        executor = new ManualScheduledExecutor();
+    }
+
+    private MojangRequestScheduler createScheduler(int capacity, double tokensPerSecond, int maxRetries) {
+        // Make requests right away and always use the longest delay, so that requests happen at predictable times
+        return new MojangRequestScheduler(capacity, tokensPerSecond, maxRetries, executor, Runnable::run, executor::nanoTime, bound -> bound - 1);
+    }
+
+    private static Supplier<MojangAPIUtil.Result<String>> succeeding(String value, List<String> calls) {
+        return () -> {
+            calls.add(value);
+            return new MojangAPIUtil.Result<>(value, true, null);
+        };
+    }
+
+    private static IOException statusException(int statusCode) {
+        return new IOException("Server returned HTTP response code: " + statusCode + " for URL: https://sessionserver.mojang.com/session/minecraft/profile/069a79f444e94726a5befca90e38aaf5");
+    }
+
+    @Test
+    public void testTokenBucketLimitsRequests() {
+        MojangRequestScheduler scheduler = createScheduler(3, 1, 0);
+        List<String> calls = new ArrayList<>();
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(scheduler.submit(MojangRequestScheduler.Priority.INTERACTIVE, succeeding("request" + i, calls)));
+        }
+        executor.runPending();
+        assertEquals(Arrays.asList("request0", "request1", "request2"), calls);
+        assertFalse(futures.get(3).isDone());
+        assertEquals(2, scheduler.getQueuedRequests());
+
+        executor.advance(999, TimeUnit.MILLISECONDS);
+        assertEquals(3, calls.size());
+        executor.advance(1, TimeUnit.MILLISECONDS);
+        assertEquals(4, calls.size());
+        executor.advance(1, TimeUnit.SECONDS);
+        assertEquals(5, calls.size());
+        assertEquals("request4", futures.get(4).join());
+        assertEquals(0, scheduler.getQueuedRequests());
+    }
+
+    @Test
+    public void testTokenBucketRefillsUpToCapacity() {
+        MojangRequestScheduler scheduler = createScheduler(2, 1, 0);
+        executor.advance(1, TimeUnit.MINUTES);
+        List<String> calls = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            scheduler.submit(MojangRequestScheduler.Priority.INTERACTIVE, succeeding("request" + i, calls));
+        }
+        executor.runPending();
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    public void testInteractiveRequestsGoFirst() {
+        MojangRequestScheduler scheduler = createScheduler(1, 1, 0);
+        List<String> calls = new ArrayList<>();
+        scheduler.submit(MojangRequestScheduler.Priority.PREFETCH, succeeding("first", calls));
+        scheduler.submit(MojangRequestScheduler.Priority.PREFETCH, succeeding("prefetch1", calls));
+        scheduler.submit(MojangRequestScheduler.Priority.PREFETCH, succeeding("prefetch2", calls));
+        scheduler.submit(MojangRequestScheduler.Priority.INTERACTIVE, succeeding("interactive", calls));
+        executor.runPending();
+        assertEquals(Arrays.asList("first"), calls);
+
+        executor.advance(3, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("first", "interactive", "prefetch1", "prefetch2"), calls);
+    }
+
+    @Test
+    public void testPromotedRequestsGoFirst() {
+        MojangRequestScheduler scheduler = createScheduler(1, 1, 0);
+        List<String> calls = new ArrayList<>();
+        scheduler.submit(MojangRequestScheduler.Priority.PREFETCH, succeeding("first", calls));
+        scheduler.submit(MojangRequestScheduler.Priority.PREFETCH, succeeding("prefetch1", calls));
+        CompletableFuture<String> promoted = scheduler.submit(MojangRequestScheduler.Priority.PREFETCH, succeeding("prefetch2", calls));
+        scheduler.submit(MojangRequestScheduler.Priority.INTERACTIVE, succeeding("interactive", calls));
+        scheduler.promote(promoted);
+        executor.advance(3, TimeUnit.SECONDS);
+        // Promoted requests keep their place among the interactive requests
+        assertEquals(Arrays.asList("first", "prefetch2", "interactive", "prefetch1"), calls);
+    }
+
+    @Test
+    public void testPromotionAppliesAfterBackoff() {
+        MojangRequestScheduler scheduler = createScheduler(2, 1, 1);
+        List<String> calls = new ArrayList<>();
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<String> promoted = scheduler.submit(MojangRequestScheduler.Priority.PREFETCH, () -> {
+            calls.add("retried");
+            if (attempts.incrementAndGet() == 1) {
+                return new MojangAPIUtil.Result<>(null, false, statusException(500));
+            }
+            return new MojangAPIUtil.Result<>("value", true, null);
+        });
+        scheduler.submit(MojangRequestScheduler.Priority.PREFETCH, succeeding("other", calls));
+        for (int i = 0; i < 3; i++) {
+            scheduler.submit(MojangRequestScheduler.Priority.PREFETCH, succeeding("prefetch" + i, calls));
+        }
+        executor.runPending();
+        scheduler.promote(promoted);
+        executor.advance(1, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("retried", "other", "retried"), calls);
+        assertEquals("value", promoted.join());
+    }
+
+    @Test
+    public void testRetriesWithBackoff() {
+        MojangRequestScheduler scheduler = createScheduler(10, 1, 5);
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<String> future = scheduler.submit(MojangRequestScheduler.Priority.INTERACTIVE, () -> {
+            if (attempts.incrementAndGet() <= 2) {
+                return new MojangAPIUtil.Result<>(null, false, statusException(503));
+            }
+            return new MojangAPIUtil.Result<>("value", true, null);
+        });
+        executor.runPending();
+        assertEquals(1, attempts.get());
+
+        executor.advance(999, TimeUnit.MILLISECONDS);
+        assertEquals(1, attempts.get());
+        executor.advance(1, TimeUnit.MILLISECONDS);
+        assertEquals(2, attempts.get());
+
+        // The backoff doubles with every attempt
+        executor.advance(1999, TimeUnit.MILLISECONDS);
+        assertEquals(2, attempts.get());
+        executor.advance(1, TimeUnit.MILLISECONDS);
+        assertEquals(3, attempts.get());
+        assertEquals("value", future.join());
+        assertEquals(2, scheduler.getRetriedRequests());
+    }
+
+    @Test
+    public void testGivesUpAfterMaxRetries() throws InterruptedException {
+        MojangRequestScheduler scheduler = createScheduler(10, 1, 2);
+        AtomicInteger attempts = new AtomicInteger();
+        SocketTimeoutException exception = new SocketTimeoutException("Read timed out");
+        CompletableFuture<String> future = scheduler.submit(MojangRequestScheduler.Priority.INTERACTIVE, () -> {
+            attempts.incrementAndGet();
+            return new MojangAPIUtil.Result<>(null, false, exception);
+        });
+        executor.advance(1, TimeUnit.MINUTES);
+        assertEquals(3, attempts.get());
+        try {
+            future.get();
+            fail("Expected the request to fail");
+        } catch (ExecutionException e) {
+            assertSame(exception, e.getCause());
+        }
+    }
+
+    @Test
+    public void testDoesNotRetryClientErrors() {
+        MojangRequestScheduler scheduler = createScheduler(10, 1, 5);
+        AtomicInteger attempts = new AtomicInteger();
+        CompletableFuture<String> future = scheduler.submit(MojangRequestScheduler.Priority.INTERACTIVE, () -> {
+            attempts.incrementAndGet();
+            return new MojangAPIUtil.Result<>(null, false, statusException(404));
+        });
+        executor.advance(1, TimeUnit.MINUTES);
+        assertEquals(1, attempts.get());
+        assertTrue(future.isCompletedExceptionally());
+        assertEquals(0, scheduler.getRetriedRequests());
+    }
+
+    @Test
+    public void testRateLimitedResponseEmptiesBucket() {
+        MojangRequestScheduler scheduler = createScheduler(10, 1, 0);
+        List<String> calls = new ArrayList<>();
+        scheduler.submit(MojangRequestScheduler.Priority.INTERACTIVE, () -> new MojangAPIUtil.Result<>(null, false, statusException(429)));
+        executor.runPending();
+        scheduler.submit(MojangRequestScheduler.Priority.INTERACTIVE, succeeding("next", calls));
+        executor.runPending();
+        assertTrue(calls.isEmpty());
+        executor.advance(1, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("next"), calls);
+    }
+
+    @Test
+    public void testSlowRequestsDoNotHoldUpTheQueue() {
+        List<Runnable> workers = new ArrayList<>();
+        MojangRequestScheduler scheduler = new MojangRequestScheduler(10, 1, 0, executor, workers::add, executor::nanoTime, bound -> bound - 1);
+        List<String> calls = new ArrayList<>();
+        CompletableFuture<String> slow = scheduler.submit(MojangRequestScheduler.Priority.INTERACTIVE, succeeding("slow", calls));
+        CompletableFuture<String> fast = scheduler.submit(MojangRequestScheduler.Priority.INTERACTIVE, succeeding("fast", calls));
+        executor.runPending();
+        // Both requests are handed to the workers without waiting for the first one
+        assertEquals(2, workers.size());
+        workers.get(1).run();
+        assertEquals("fast", fast.join());
+        assertFalse(slow.isDone());
+        workers.get(0).run();
+        executor.runPending();
+        assertEquals("slow", slow.join());
+        assertEquals(0, scheduler.getQueuedRequests());
+    }
+
+    @Test
+    public void testStatusCodeIsOnlyReadFromTheStatus() {
+        assertEquals(503, MojangRequestScheduler.getStatusCode(statusException(503)));
+        assertEquals(429, MojangRequestScheduler.getStatusCode(new RuntimeException(statusException(429))));
+        // Numbers elsewhere in the message mustn't be mistaken for the status code
+        assertEquals(-1, MojangRequestScheduler.getStatusCode(new IOException("Failed to read 500 bytes from https://api.mojang.com/429")));
+        assertFalse(MojangRequestScheduler.isRetryable(new IOException("Server returned HTTP response code: 404 for URL: https://api.mojang.com/users/profiles/minecraft/500")));
+        assertTrue(MojangRequestScheduler.isRetryable(new IOException("Server returned HTTP response code: 429 for URL: https://api.mojang.com/profiles/minecraft")));
+        assertTrue(MojangRequestScheduler.isRetryable(new RuntimeException(new SocketTimeoutException())));
+        assertFalse(MojangRequestScheduler.isRetryable(new IllegalArgumentException("Invalid UUID")));
+    }
+}
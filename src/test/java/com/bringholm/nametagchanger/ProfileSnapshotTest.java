@@ -0,0 +1,68 @@
+package com.bringholm.nametagchanger;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ProfileSnapshotTest {
+    private static final int ENTRIES = 100000;
+
+    @Test
+    public void testChangesMakeNewSnapshots() {
+        UUID uuid = UUID.randomUUID();
+        GameProfileWrapper profile = new GameProfileWrapper(uuid, "Changed");
+        ProfileSnapshot snapshot = ProfileSnapshot.EMPTY.withProfile(uuid, profile).withChangedName("Original", "Changed");
+        assertTrue(ProfileSnapshot.EMPTY.isEmpty());
+        assertFalse(snapshot.isEmpty());
+        assertSame(profile, snapshot.getProfile(uuid));
+        assertEquals("Changed", snapshot.getChangedName("Original"));
+        assertSame(snapshot, snapshot.withoutProfile(UUID.randomUUID()));
+        assertTrue(snapshot.withoutProfile(uuid).isEmpty());
+        assertNull(snapshot.withoutChangedName("Original").getChangedName("Original"));
+    }
+
+    /**
+     * The packet listeners look up the UUID of every entry of every PLAYER_INFO packet,
+     * so looking up players who aren't changed mustn't allocate anything.
+     */
+    @Test
+    public void testLookingUpUnchangedPlayersDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        ProfileSnapshot snapshot = ProfileSnapshot.EMPTY;
+        for (int i = 0; i < 20; i++) {
+            UUID uuid = UUID.randomUUID();
+            snapshot = snapshot.withProfile(uuid, new GameProfileWrapper(uuid, "Changed" + i));
+        }
+        UUID[] unchanged = new UUID[64];
+        for (int i = 0; i < unchanged.length; i++) {
+            unchanged[i] = UUID.randomUUID();
+        }
+        // Warm up, so that the measurement doesn't include class loading or the JIT
+        int found = lookUp(snapshot, unchanged) + lookUp(ProfileSnapshot.EMPTY, unchanged);
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        found += lookUp(snapshot, unchanged) + lookUp(ProfileSnapshot.EMPTY, unchanged);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertEquals(0, found);
+        // Allow for the measurement itself, which is far less than a single byte per lookup
+        assertTrue("looking up " + 2 * ENTRIES + " unchanged players allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static int lookUp(ProfileSnapshot snapshot, UUID[] uuids) {
+        int found = 0;
+        for (int i = 0; i < ENTRIES; i++) {
+            // Mirrors the packet listeners, which skip the entries entirely if nothing is changed
+            if (!snapshot.isEmpty() && snapshot.getProfile(uuids[i % uuids.length]) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
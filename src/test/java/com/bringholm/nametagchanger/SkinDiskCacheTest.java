@@ -0,0 +1,218 @@
+package com.bringholm.nametagchanger;
+
+import com.bringholm.nametagchanger.skin.Skin;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SkinDiskCacheTest {
+    private static final long TTL = 1000;
+
+    private final AtomicLong now = new AtomicLong(1000000);
+    private Path directory;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("nametagchanger");
+        file = directory.resolve("skins.dat").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private SkinDiskCache createCache(int maxSkins) {
+        return new SkinDiskCache(file, TTL, maxSkins, now::get);
+    }
+
+    private static Skin createSkin(UUID uuid, String texture) {
+        return new Skin(uuid, "value-" + texture, "signature-" + texture);
+    }
+
+    private static void assertSkin(String texture, Skin skin) {
+        assertNotNull(skin);
+        assertEquals("value-" + texture, skin.getBase64());
+        assertEquals("signature-" + texture, skin.getSignedBase64());
+    }
+
+    @Test
+    public void testSkinsAreKeptAfterRestart() {
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        UUID empty = UUID.randomUUID();
+        SkinDiskCache cache = createCache(10);
+        cache.put(first, createSkin(first, "first"));
+        cache.put(second, createSkin(second, "second"));
+        cache.put(second, createSkin(second, "second-updated"));
+        cache.put(empty, Skin.EMPTY_SKIN);
+        cache.close();
+
+        cache = createCache(10);
+        assertSkin("first", cache.get(first));
+        assertSkin("second-updated", cache.get(second));
+        assertSame(Skin.EMPTY_SKIN, cache.get(empty));
+        assertNull(cache.get(UUID.randomUUID()));
+        cache.close();
+    }
+
+    @Test
+    public void testTruncatedRecordIsDropped() throws IOException {
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        SkinDiskCache cache = createCache(10);
+        cache.put(first, createSkin(first, "first"));
+        cache.close();
+        long length = file.length();
+        cache = createCache(10);
+        cache.put(second, createSkin(second, "second"));
+        cache.close();
+        // Cut the last record off in the middle, as if the server crashed while writing it
+        try (RandomAccessFile data = new RandomAccessFile(file, "rw")) {
+            data.setLength(data.length() - 5);
+        }
+
+        cache = createCache(10);
+        assertSkin("first", cache.get(first));
+        assertNull(cache.get(second));
+        assertEquals(length, file.length());
+        cache.put(second, createSkin(second, "second"));
+        cache.close();
+
+        cache = createCache(10);
+        assertSkin("first", cache.get(first));
+        assertSkin("second", cache.get(second));
+        cache.close();
+    }
+
+    @Test
+    public void testCorruptRecordIsDropped() throws IOException {
+        UUID first = UUID.randomUUID();
+        SkinDiskCache cache = createCache(10);
+        cache.put(first, createSkin(first, "first"));
+        cache.close();
+        long length = file.length();
+        try (RandomAccessFile data = new RandomAccessFile(file, "rw")) {
+            data.seek(length);
+            data.writeLong(now.get() + TTL);
+            data.writeLong(1);
+            data.writeLong(2);
+            data.writeByte(0);
+            // A string of three bytes which aren't valid modified UTF-8
+            data.writeShort(3);
+            data.write(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+        }
+
+        cache = createCache(10);
+        assertSkin("first", cache.get(first));
+        assertNull(cache.get(new UUID(1, 2)));
+        assertEquals(length, file.length());
+        cache.close();
+    }
+
+    @Test
+    public void testSkinsExpire() {
+        UUID uuid = UUID.randomUUID();
+        SkinDiskCache cache = createCache(10);
+        cache.put(uuid, createSkin(uuid, "skin"));
+        now.addAndGet(TTL - 1);
+        assertSkin("skin", cache.get(uuid));
+        cache.close();
+
+        cache = createCache(10);
+        assertSkin("skin", cache.get(uuid));
+        now.incrementAndGet();
+        assertNull(cache.get(uuid));
+        cache.close();
+
+        cache = createCache(10);
+        assertNull(cache.get(uuid));
+        cache.close();
+    }
+
+    @Test
+    public void testEldestSkinsAreEvicted() {
+        UUID[] uuids = new UUID[5];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = UUID.randomUUID();
+        }
+        SkinDiskCache cache = createCache(3);
+        for (int i = 0; i < 4; i++) {
+            cache.put(uuids[i], createSkin(uuids[i], "skin" + i));
+        }
+        assertNull(cache.get(uuids[0]));
+        // Storing a skin again makes it the newest
+        cache.put(uuids[1], createSkin(uuids[1], "skin1"));
+        cache.put(uuids[4], createSkin(uuids[4], "skin4"));
+        assertNull(cache.get(uuids[2]));
+        assertSkin("skin1", cache.get(uuids[1]));
+        assertSkin("skin3", cache.get(uuids[3]));
+        assertSkin("skin4", cache.get(uuids[4]));
+        cache.close();
+
+        cache = createCache(3);
+        assertNull(cache.get(uuids[0]));
+        assertNull(cache.get(uuids[2]));
+        assertSkin("skin1", cache.get(uuids[1]));
+        cache.close();
+    }
+
+    @Test
+    public void testCompactionKeepsOnlyLiveRecords() {
+        UUID[] uuids = new UUID[10];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = UUID.randomUUID();
+        }
+        UUID expired = UUID.randomUUID();
+        SkinDiskCache cache = createCache(100);
+        cache.put(expired, createSkin(expired, "expired"));
+        now.addAndGet(TTL / 2);
+        for (UUID uuid : uuids) {
+            cache.put(uuid, createSkin(uuid, "initial"));
+        }
+        now.addAndGet(TTL / 2);
+        // Enough outdated records to make the cache compact the file
+        for (int round = 0; round < 110; round++) {
+            for (UUID uuid : uuids) {
+                cache.put(uuid, createSkin(uuid, "round" + round));
+            }
+        }
+        cache.close();
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        // Without compacting, the file would hold all 1111 records that were written
+        File singleFile = directory.resolve("single.dat").toFile();
+        SkinDiskCache single = new SkinDiskCache(singleFile, TTL, 100, now::get);
+        single.put(uuids[0], createSkin(uuids[0], "round109"));
+        single.close();
+        long recordSize = singleFile.length() - 8;
+        assertTrue("file was not compacted", file.length() < 1111 * recordSize / 5);
+
+        cache = createCache(100);
+        assertNull(cache.get(expired));
+        for (UUID uuid : uuids) {
+            assertSkin("round109", cache.get(uuid));
+        }
+        cache.close();
+    }
+}
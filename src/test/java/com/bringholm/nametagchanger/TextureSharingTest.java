@@ -0,0 +1,56 @@
+package com.bringholm.nametagchanger;
+
+import com.bringholm.nametagchanger.skin.Skin;
+import org.junit.Test;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.assertTrue;
+
+public class TextureSharingTest {
+    private static final int PLAYERS = 100;
+    private static final int VALUE_LENGTH = 700;
+    private static final int SIGNATURE_LENGTH = 684;
+
+    /**
+     * Everyone in a minigame often wears the same disguise, which is loaded separately
+     * for each of them, such as from a config. Their profiles should still share the
+     * texture data, instead of every changed player keeping their own copy of it.
+     */
+    @Test
+    public void testChangedPlayersShareTextures() {
+        String value = texture('v', VALUE_LENGTH);
+        String signature = texture('s', SIGNATURE_LENGTH);
+        GameProfileWrapper[] shared = new GameProfileWrapper[PLAYERS];
+        GameProfileWrapper[] copied = new GameProfileWrapper[PLAYERS];
+        for (int i = 0; i < PLAYERS; i++) {
+            UUID uuid = UUID.randomUUID();
+            // Copies, like loading the skin again would make
+            Skin skin = new Skin(UUID.randomUUID(), copy(value), copy(signature));
+            shared[i] = withTextures(uuid, skin.getBase64(), skin.getSignedBase64());
+            copied[i] = withTextures(uuid, copy(value), copy(signature));
+        }
+        long savedPerPlayer = (GraphLayout.parseInstance((Object[]) copied).totalSize() - GraphLayout.parseInstance((Object[]) shared).totalSize()) / PLAYERS;
+        // Strings take at least a byte per character
+        assertTrue("sharing textures saved " + savedPerPlayer + " bytes per changed player", savedPerPlayer >= VALUE_LENGTH + SIGNATURE_LENGTH);
+    }
+
+    private static GameProfileWrapper withTextures(UUID uuid, String value, String signature) {
+        return new GameProfileWrapper(uuid, "Disguised").withTextures(Collections.singleton(new GameProfileWrapper.PropertyWrapper("textures", value, signature)));
+    }
+
+    // new String(String) would share the characters of the original
+    private static String copy(String string) {
+        return new String(string.toCharArray());
+    }
+
+    private static String texture(char c, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+}